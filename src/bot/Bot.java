@@ -1,9 +1,15 @@
 package bot;
 
+import bot.SearchEvents.TableEvent;
+import bot.SearchEvents.ThinkEvent;
+import jdk.jfr.FlightRecorder;
 import theaigames.Field;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static bot.EvaluatedGame.PLAYER_MAX;
 import static bot.EvaluatedGame.PLAYER_MIN;
@@ -15,21 +21,122 @@ import static bot.Util.*;
 public class Bot {
   private static final int TIME_BUFFER = 250;
   private static final int TIME_INCREMENT = 500;
+  private static final int DEFAULT_EVALUATION_CACHE_LOG_SIZE = 0; // 0 to disable
+  private static final int TABLE_MEGABYTES = 16;
+  private static final int DEFAULT_SEARCH_THREADS = 1;
+  private static final boolean DEFAULT_PONDER = true;
+  private static final boolean DEFAULT_MONTE_CARLO = false;
 
   private final Scanner input;
+  private final int searchThreads;
+  private final boolean ponder;
+  private final boolean monteCarlo;
+  private final ExecutorService executor; // reused across moves, so no thread churn per think()
+
+  private int evaluationCacheLogSize;
+  private ProofStore proofStore; // kept across games, or null for none
 
   private Field field;
   private EvaluatedGame game;
   private Searcher searcher;
+  private Searcher[] helperSearchers; // Lazy SMP helpers sharing the searcher's table
+  private MonteCarloSearcher monteCarloSearcher; // used instead if monteCarlo
+
+  // Running search, if any: started by think(), or by pondering and then kept on a ponder hit
+  private Future<?> searchFuture;
+  private List<Future<?>> helperFutures;
+  private AtomicReference<Searcher.Result> lastResult;
+  private long searchStartTime;
+
+  // Predicted opponent move played on the game while pondering, or -1
+  private int ponderMove;
+
+  // Emits table snapshots for flight recordings, registered for the current table
+  private Runnable tableEventHook;
 
   public Bot() {
+    this(DEFAULT_SEARCH_THREADS, DEFAULT_PONDER);
+  }
+
+  public Bot(int searchThreads) {
+    this(searchThreads, DEFAULT_PONDER);
+  }
+
+  /**
+   * Creates a bot that searches with the given number of threads, and optionally keeps searching
+   * while the opponent is thinking.
+   */
+  public Bot(int searchThreads, boolean ponder) {
+    this(searchThreads, ponder, DEFAULT_MONTE_CARLO);
+  }
+
+  /**
+   * Like {@link #Bot(int, boolean)}, but optionally searching with Monte Carlo tree search instead
+   * of alpha-beta. A Monte Carlo bot ponders on the current position, keeping the subtree of the
+   * opponent's move.
+   */
+  public Bot(int searchThreads, boolean ponder, boolean monteCarlo) {
     input = new Scanner(System.in);
+    this.searchThreads = Math.max(1, searchThreads);
+    this.ponder = ponder;
+    this.monteCarlo = monteCarlo;
+    executor = Executors.newFixedThreadPool(this.searchThreads, runnable -> {
+      Thread thread = new Thread(runnable, "search");
+      thread.setDaemon(true);
+      return thread;
+    });
+    evaluationCacheLogSize = DEFAULT_EVALUATION_CACHE_LOG_SIZE;
+  }
+
+  /**
+   * Sets the log size of the evaluation cache shared by the search threads, or 0 for none. Takes
+   * effect from the next {@link #run()}.
+   */
+  public void setEvaluationCacheLogSize(int evaluationCacheLogSize) {
+    this.evaluationCacheLogSize = evaluationCacheLogSize;
+  }
+
+  /**
+   * Sets a proof store for the search threads to share across games, or null for none (the
+   * default). Takes effect from the next {@link #run()}.
+   */
+  public void setProofStore(ProofStore proofStore) {
+    this.proofStore = proofStore;
   }
 
   private void reset() {
     field = new Field();
     game = new EvaluatedGame();
-    searcher = new Searcher(game);
+    if (evaluationCacheLogSize > 0) {
+      game.setEvaluationCache(new EvaluationCache(evaluationCacheLogSize));
+    }
+    searcher = new Searcher(game, TranspositionTable.withMegabytes(TABLE_MEGABYTES));
+    searcher.setProofStore(proofStore);
+    helperSearchers = new Searcher[searchThreads - 1];
+    for (int i = 0; i < helperSearchers.length; i++) {
+      helperSearchers[i] = new Searcher(game, searcher.getTable());
+      helperSearchers[i].setProofStore(proofStore);
+    }
+    monteCarloSearcher = monteCarlo ? new MonteCarloSearcher(game) : null;
+    if (tableEventHook != null) {
+      FlightRecorder.removePeriodicEvent(tableEventHook);
+      tableEventHook = null;
+    }
+    if (!monteCarlo) {
+      TranspositionTable table = searcher.getTable();
+      tableEventHook = () -> {
+        TableEvent event = new TableEvent();
+        event.size = table.size();
+        event.load = table.estimateLoad();
+        event.gets = table.getStats().gets;
+        event.hits = table.getStats().hits;
+        event.commit();
+      };
+      FlightRecorder.addPeriodicEvent(TableEvent.class, tableEventHook);
+    }
+    searchFuture = null;
+    lastResult = new AtomicReference<>();
+    ponderMove = -1;
   }
 
   public void run() {
@@ -47,6 +154,14 @@ public class Bot {
         System.err.println("processing: " + line);
         field.parseGameData(parts[2], parts[3]);
         if (parts[2].equals("field")) { // opponent move
+          if (ponderMove != -1 && deduceLastMove() == -1) {
+            // The running search already assumes this move, so let it go on
+            System.err.printf(
+                "ponder hit: %s (%s, %s)\n", ponderMove, row(ponderMove), col(ponderMove));
+            ponderMove = -1;
+            continue;
+          }
+          stopPondering();
           int move = deduceLastMove();
           if (move != -1) {
             game.unsafeDoMove(move);
@@ -73,6 +188,9 @@ public class Bot {
           game.unsafeDoMove(move);
           System.err.printf("own move: %s (%s, %s)\n", move, row(move), col(move));
           System.err.println(game.getFormattedBoardString());
+          if (ponder) {
+            startPondering(move);
+          }
         } else {
           System.out.println("no_moves");
           System.err.println("own move: ERROR");
@@ -86,7 +204,7 @@ public class Bot {
   private int deduceLastMove() {
     for (int row = 0; row < ROWS; row++) {
       for (int col = 0; col < COLS; col++) {
-        if (game.getBoard()[index(row, col)] != field.getPlayerId(col, row)) {
+        if (game.getCell(index(row, col)) != field.getPlayerId(col, row)) {
           // Assume only one move difference
           return index(row, col);
         }
@@ -113,49 +231,223 @@ public class Bot {
 
     System.err.println("called think(" + time + ")");
 
+    ThinkEvent event = new ThinkEvent();
+    event.begin();
+    long nanoStart = System.nanoTime();
+    // An iteration started after half the time is unlikely to finish, so save the rest
+    long hardDeadline = nanoStart + TimeUnit.MILLISECONDS.toNanos(time);
+    long softDeadline = nanoStart + TimeUnit.MILLISECONDS.toNanos(time / 2);
+    setDeadlines(softDeadline, hardDeadline);
+    boolean pondered = searchFuture != null;
+    if (!pondered) {
+      startSearch();
+    } else {
+      System.err.println("continuing ponder search");
+    }
+    String stopReason = null;
+    long stopTime;
+    try {
+      // The searcher stops itself at the hard deadline; the timeout is only a safeguard
+      searchFuture.get(time + TIME_BUFFER, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException | InterruptedException e) {
+      System.err.println("search timeout/interrupt error");
+      stopReason = "timeout";
+    } catch (ExecutionException e) {
+      e.printStackTrace();
+      stopReason = "error";
+    } finally {
+      stopTime = System.nanoTime();
+      if (stopTime >= hardDeadline) {
+        System.err.printf(
+            "Search stopped %.3f ms after deadline\n", (stopTime - hardDeadline) / 1e6);
+      }
+      stopSearch();
+    }
+
+    int move, depth;
+    long nodes;
+    boolean proven;
+    if (monteCarlo) {
+      MonteCarloSearcher.Result result = monteCarloSearcher.getResult();
+      printMonteCarloResult(result, System.currentTimeMillis() - searchStartTime);
+      move = result.getMove();
+      depth = 0;
+      nodes = monteCarloSearcher.getPlayouts();
+      proven = result.isProvenResult();
+    } else {
+      printSearchStats(searcher.getStats());
+      printTranspositionTableStats(searcher.getTable());
+      if (game.getEvaluationCache() != null) {
+        printEvaluationCacheStats(game.getEvaluationCache());
+      }
+      Searcher.Result result = lastResult.get();
+      move = result != null ? result.getPVMove() : -1;
+      depth = result != null ? result.getStats().getDepth() : 0;
+      nodes = getTotalNodes();
+      proven = result != null && result.isProvenResult();
+    }
+
+    if (event.shouldCommit()) {
+      if (stopReason == null) {
+        stopReason = proven ? "proven"
+            : (stopTime >= hardDeadline) ? "hard deadline"
+            : "soft deadline";
+      }
+      event.budget = time;
+      event.depth = depth;
+      event.nodes = nodes;
+      event.move = move;
+      event.stopReason = stopReason;
+      event.pondered = pondered;
+      event.commit();
+    }
+    return move != -1 ? move : game.generateRandomMove();
+  }
+
+  /**
+   * Starts searching the opponent's turn after we played the given move: the position after the
+   * reply predicted by our PV if there is one, otherwise the current position.
+   */
+  private void startPondering(int ownMove) {
+    if (game.isFinished())
+      return;
+
+    if (monteCarlo) {
+      System.err.println("pondering on opponent's turn");
+      setDeadlines(Searcher.NO_DEADLINE, Searcher.NO_DEADLINE);
+      startSearch();
+      return;
+    }
+
+    Searcher.Result result = lastResult.get();
+    if (result != null && result.getPVLength() >= 2 && result.getPVMove() == ownMove) {
+      int predictedMove = result.getPV().get(1);
+      if (game.canDoMove(predictedMove)) {
+        game.unsafeDoMove(predictedMove);
+        if (game.isFinished()) {
+          game.unsafeUndoMove();
+        } else {
+          ponderMove = predictedMove;
+        }
+      }
+    }
+    if (ponderMove != -1) {
+      System.err.printf(
+          "pondering on: %s (%s, %s)\n", ponderMove, row(ponderMove), col(ponderMove));
+    } else {
+      System.err.println("pondering on opponent's turn");
+    }
+    setDeadlines(Searcher.NO_DEADLINE, Searcher.NO_DEADLINE);
+    startSearch();
+  }
+
+  /**
+   * Stops any search left running by pondering, and takes back the predicted move if any.
+   */
+  private void stopPondering() {
+    if (searchFuture == null)
+      return;
+
+    stopSearch();
+    if (ponderMove != -1) {
+      game.unsafeUndoMove();
+      System.err.printf("ponder miss: %s (%s, %s)\n", ponderMove, row(ponderMove), col(ponderMove));
+      ponderMove = -1;
+    }
+  }
+
+  private void setDeadlines(long softDeadline, long hardDeadline) {
+    if (monteCarlo) {
+      // Playouts are short, so there is no point stopping early
+      monteCarloSearcher.setDeadline(hardDeadline);
+      return;
+    }
+    searcher.setDeadlines(softDeadline, hardDeadline);
+    for (Searcher helperSearcher : helperSearchers) {
+      helperSearcher.setDeadlines(Searcher.NO_DEADLINE, hardDeadline);
+    }
+  }
+
+  private void startSearch() {
+    if (monteCarlo) {
+      helperFutures = new ArrayList<>();
+      searchStartTime = System.currentTimeMillis();
+      searchFuture = executor.submit(() -> monteCarloSearcher.search(executor, searchThreads));
+      return;
+    }
+
     searcher.resetNodes();
+    for (Searcher helperSearcher : helperSearchers) {
+      helperSearcher.resetNodes();
+    }
     searcher.getTable().resetStats();
+    if (game.getEvaluationCache() != null) {
+      game.getEvaluationCache().resetStats();
+    }
 
-    ExecutorService executor = Executors.newSingleThreadExecutor();
-    long timeStart = System.currentTimeMillis();
-    long timeEnd = timeStart + time;
-    Searcher.Result result = null;
+    helperFutures = new ArrayList<>();
+    for (int i = 0; i < helperSearchers.length; i++) {
+      // Every other helper starts a ply deeper, so helpers diverge from the main search
+      helperFutures.add(
+          executor.submit(new Searcher.HelperTask(helperSearchers[i], i % 2 == 0 ? 1 : 0)));
+    }
+    lastResult = new AtomicReference<>();
+    searchStartTime = System.currentTimeMillis();
+    AtomicReference<Searcher.Result> iterationResults = lastResult;
+    int currentPlayer = game.getCurrentPlayer();
     printSearchResultHeader();
-    for (int depth = 1; ; depth++) {
-      Searcher.Task task = new Searcher.Task(searcher, depth);
-      Future<Searcher.Result> future = executor.submit(task);
-      long timeRemaining = timeEnd - System.currentTimeMillis();
-      try {
-        result = future.get(timeRemaining, TimeUnit.MILLISECONDS);
-      } catch (TimeoutException | InterruptedException e) {
-        if (depth <= 1) {
-          System.err.println("early timeout/interrupt error");
-        }
-        break;
-      } catch (ExecutionException e) {
-        e.printStackTrace();
-        break;
-      } finally {
-        future.cancel(true);
-      }
-      printSearchResult(
-          result,
-          searcher.getGame().getCurrentPlayer(),
-          depth,
-          System.currentTimeMillis() - timeStart,
-          searcher.getNodes());
-      if (result.isProvenResult())
-        break;
+    searchFuture = executor.submit(new Searcher.Task(
+        searcher,
+        MAX_MOVES,
+        (depth, iterationResult) -> {
+          iterationResults.set(iterationResult);
+          printSearchResult(
+              iterationResult,
+              currentPlayer,
+              depth,
+              System.currentTimeMillis() - searchStartTime,
+              getTotalNodes());
+        }));
+  }
+
+  /**
+   * Stops the running search and waits for all its threads, since they share the game.
+   */
+  private void stopSearch() {
+    if (monteCarlo) {
+      monteCarloSearcher.stop();
+    }
+    searcher.stop();
+    for (Searcher helperSearcher : helperSearchers) {
+      helperSearcher.stop();
     }
-    executor.shutdown();
+    awaitStopped(searchFuture);
+    for (Future<?> helperFuture : helperFutures) {
+      awaitStopped(helperFuture);
+    }
+    searchFuture = null;
+  }
 
-    printTranspositionTableStats(searcher.getTable());
+  private void awaitStopped(Future<?> future) {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      e.printStackTrace();
+    }
+  }
 
-    return result != null ? result.getPVMove() : game.generateRandomMove();
+  private long getTotalNodes() {
+    long nodes = searcher.getNodes();
+    for (Searcher helperSearcher : helperSearchers) {
+      nodes += helperSearcher.getNodes();
+    }
+    return nodes;
   }
 
   private void printSearchResultHeader() {
-    System.err.println("Depth\tTime\tNodes\tScore\tVariation");
+    System.err.println("Depth\tTime\tNodes\tEBF\tScore\tVariation");
   }
 
   private void printSearchResult(
@@ -167,6 +459,7 @@ public class Bot {
     System.err.printf("%d\t", depth);
     System.err.printf("%.3f\t", time / 1000.0);
     System.err.printf("%d\t", nodes);
+    System.err.printf("%.2f\t", result.getStats().getEffectiveBranchingFactor(depth));
     if (result.isProvenResult()) {
       String resultStr;
       if (result.getScore() != 0) {
@@ -185,6 +478,35 @@ public class Bot {
     System.err.println();
   }
 
+  private void printMonteCarloResult(MonteCarloSearcher.Result result, long time) {
+    System.err.println("Time\tPlayouts\tVisits\tValue\tVariation");
+    System.err.printf("%.3f\t", time / 1000.0);
+    System.err.printf("%d\t", monteCarloSearcher.getPlayouts());
+    System.err.printf("%d\t", result.getVisits());
+    if (result.isProvenResult()) {
+      int provenResult = result.getProvenResult();
+      System.err.printf("%s\t", provenResult == MonteCarloSearcher.WIN ? "win"
+          : provenResult == MonteCarloSearcher.LOSS ? "loss" : "draw");
+    } else {
+      System.err.printf("%.3f\t", result.getValue());
+    }
+    for (int move : result.getPV()) {
+      System.err.print(row(move) + "," + col(move) + " ");
+    }
+    System.err.println();
+  }
+
+  private void printSearchStats(SearchStats stats) {
+    System.err.print("Search stats: ");
+    System.err.printf(
+        "quiescence nodes %.2f%%, ", 100.0 * stats.quiescenceNodes / stats.getNodes());
+    System.err.printf("first move cutoffs %.2f%%, ", stats.getFirstMoveCutoffRate() * 100);
+    System.err.printf("usable table hits %.2f%%, ",
+        100.0 * stats.getUsableTableHits() / stats.getTableHits());
+    System.err.printf("re-searches %d PVS, %d reduction\n",
+        stats.pvsResearches, stats.reductionResearches);
+  }
+
   private void printTranspositionTableStats(TranspositionTable table) {
     TranspositionTable.Stats stats = table.getStats();
     double putRate = (double) (stats.creates + stats.replaces) / stats.inserts;
@@ -195,4 +517,12 @@ public class Bot {
     System.err.printf("hits %.2f%%, ", hitRate * 100);
     System.err.printf("load %.2f%%\n", load * 100);
   }
+
+  private void printEvaluationCacheStats(EvaluationCache cache) {
+    EvaluationCache.Stats stats = cache.getStats();
+    double hitRate = (double) stats.hits / stats.gets;
+    System.err.print("Evaluation cache stats: ");
+    System.err.printf("gets %d, ", stats.gets);
+    System.err.printf("hits %.2f%%\n", hitRate * 100);
+  }
 }
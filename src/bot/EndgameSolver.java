@@ -0,0 +1,344 @@
+package bot;
+
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+import static bot.Util.*;
+
+/**
+ * Exact solver for positions with few playable cells left. Keeps its own bitboard state and
+ * transposition table, and only searches with win/loss/draw bounds, so it prunes far more than a
+ * heuristic search of the same position.
+ *
+ * @author Vance Zuo
+ */
+public class EndgameSolver {
+  public static class Stats {
+    public long solves, nodes;
+
+    @Override
+    public String toString() {
+      return String.format(
+          "EndgameSolver.Stats(%s=%s, %s=%s)",
+          "solves", solves,
+          "nodes", nodes);
+    }
+  }
+
+  // Results for the player to move
+  public static final int LOSS = -1, DRAW = 0, WIN = 1;
+  // Returned by solve() if stopped
+  public static final int UNKNOWN = Integer.MIN_VALUE;
+
+  public static final int DEFAULT_LOG_SIZE = 18;
+
+  // Nodes between checks of the stop condition; must be a power of 2
+  private static final int STOP_POLL_INTERVAL = 1 << 10;
+
+  private static final long[][] CELL_KEYS; // [player][move]
+  private static final long[] NEXT_MACRO_INDEX_KEYS; // ANY_MACRO_INDEX, 0 to 8
+  static {
+    Random random = new Random(1095064007);
+    CELL_KEYS = new long[NUM_PLAYERS + 1][BOARD_SIZE];
+    for (int player = PLAYER_1; player <= NUM_PLAYERS; player++) {
+      for (int move = 0; move < BOARD_SIZE; move++) {
+        CELL_KEYS[player][move] = random.nextLong();
+      }
+    }
+    NEXT_MACRO_INDEX_KEYS = new long[MACROBOARD_SIZE + 1];
+    for (int i = 0; i < NEXT_MACRO_INDEX_KEYS.length; i++) {
+      NEXT_MACRO_INDEX_KEYS[i] = random.nextLong();
+    }
+  }
+
+  // Table entry layout: lower bound + 1 (0-1), upper bound + 1 (2-3), move (4-11),
+  // distance (12-19), and a set bit (20) so that no entry is zero
+  private static final int UPPER_SHIFT = 2, MOVE_SHIFT = 4, DISTANCE_SHIFT = 12;
+  private static final long PRESENT_BIT = 1L << 20;
+
+  // Moves are macro index * 9 + micro index internally
+  private final int[][] microboards; // [PLAYER_NONE (unused), PLAYER_1, PLAYER_2][macro index]
+  private final int[] macroboards; // [PLAYER_NONE (unused), PLAYER_1, PLAYER_2]
+  private int nextMacroInd;
+  private int currentPlayer;
+  private long key;
+
+  private final int[] nextMacroIndHistory;
+  private final int[][] moveBuffers; // indexed by ply
+  private final int[] quietMoves; // scratch for move generation
+  private int ply;
+
+  private final long[] checks; // key ^ data
+  private final long[] data;
+  private Stats stats;
+
+  private BooleanSupplier stopCondition;
+  private boolean stopped;
+
+  // Length and first move of the line behind the result last returned by solve(int, int)
+  private int distance;
+  private int bestMove;
+
+  public EndgameSolver(int logSize) {
+    microboards = new int[NUM_PLAYERS + 1][MACROBOARD_SIZE];
+    macroboards = new int[NUM_PLAYERS + 1];
+    nextMacroIndHistory = new int[MAX_MOVES];
+    moveBuffers = new int[MAX_MOVES + 1][MAX_MOVES];
+    quietMoves = new int[MAX_MOVES];
+    checks = new long[1 << logSize];
+    data = new long[1 << logSize];
+    stats = new Stats();
+  }
+
+  public EndgameSolver() {
+    this(DEFAULT_LOG_SIZE);
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  public void resetStats() {
+    stats = new Stats();
+  }
+
+  /**
+   * Returns the number of empty cells in microboards that are not won yet.
+   */
+  public static int countPlayableCells(Game game) {
+    int closed = game.getMacroboardMask(PLAYER_1) | game.getMacroboardMask(PLAYER_2);
+    int cells = 0;
+    for (int macroInd = 0; macroInd < MACROBOARD_SIZE; macroInd++) {
+      if ((closed & (1 << macroInd)) == 0) {
+        int occupied = game.getMicroboardMask(PLAYER_1, macroInd)
+            | game.getMicroboardMask(PLAYER_2, macroInd);
+        cells += MICROBOARD_SIZE - Integer.bitCount(occupied);
+      }
+    }
+    return cells;
+  }
+
+  /**
+   * Solves the given unfinished game, returning {@link #WIN}, {@link #LOSS} or {@link #DRAW} for
+   * the player to move, or {@link #UNKNOWN} if the stop condition became true first.
+   */
+  public int solve(Game game, BooleanSupplier stopCondition) {
+    stats.solves++;
+    for (int player = PLAYER_1; player <= NUM_PLAYERS; player++) {
+      for (int macroInd = 0; macroInd < MACROBOARD_SIZE; macroInd++) {
+        microboards[player][macroInd] = game.getMicroboardMask(player, macroInd);
+      }
+      macroboards[player] = game.getMacroboardMask(player);
+    }
+    nextMacroInd = game.getNextMacroIndex();
+    currentPlayer = game.getCurrentPlayer();
+    key = computeKey();
+    ply = 0;
+    this.stopCondition = stopCondition;
+    stopped = false;
+
+    int result = solve(LOSS, WIN);
+    return stopped ? UNKNOWN : result;
+  }
+
+  /**
+   * Returns the number of moves to the end of the game along the line behind the last result.
+   * It is not necessarily the shortest win (or longest loss), as bounds are win/loss/draw only.
+   */
+  public int getDistance() {
+    return distance;
+  }
+
+  /**
+   * Returns the (board) index of the first move behind the last result, or -1 if none.
+   */
+  public int getBestMove() {
+    return bestMove == -1
+        ? -1
+        : indexesInMacroIndex(bestMove / MICROBOARD_SIZE)[bestMove % MICROBOARD_SIZE];
+  }
+
+  private int solve(int alpha, int beta) {
+    stats.nodes++;
+    if ((stats.nodes & (STOP_POLL_INTERVAL - 1)) == 0 && stopCondition.getAsBoolean()) {
+      stopped = true;
+    }
+    if (stopped) {
+      return DRAW;
+    }
+
+    // Check transposition table
+    int index = (int) (key & (data.length - 1));
+    long entry = data[index];
+    int lower = LOSS, upper = WIN;
+    int hashMove = -1;
+    if ((checks[index] ^ entry) == key && entry != 0) {
+      lower = (int) (entry & 0b11) - 1;
+      upper = (int) ((entry >>> UPPER_SHIFT) & 0b11) - 1;
+      if (lower >= beta || upper <= alpha || lower == upper) {
+        distance = (int) ((entry >>> DISTANCE_SHIFT) & 0xFF);
+        bestMove = (byte) (entry >>> MOVE_SHIFT);
+        return lower >= beta ? lower : upper;
+      }
+      hashMove = (byte) (entry >>> MOVE_SHIFT);
+      alpha = Math.max(alpha, lower);
+      beta = Math.min(beta, upper);
+    }
+
+    int[] moves = moveBuffers[ply];
+    int numMoves = generateMoves(moves, hashMove);
+    if (numMoves < 0) { // immediate win
+      distance = 1;
+      bestMove = moves[0];
+      return WIN;
+    }
+    if (numMoves == 0) { // draw
+      distance = 0;
+      bestMove = -1;
+      return DRAW;
+    }
+
+    int originalAlpha = alpha;
+    int bestScore = LOSS - 1;
+    int bestDistance = 0;
+    int best = -1;
+    for (int i = 0; i < numMoves; i++) {
+      int move = moves[i];
+      doMove(move);
+      int score = -solve(-beta, -alpha);
+      undoMove(move);
+      if (stopped) {
+        return DRAW;
+      }
+      int moveDistance = distance + 1;
+      // Prefer slower losses; other equal results may only be bounds (and wins cut off anyway)
+      if (score > bestScore
+          || (score == LOSS && bestScore == LOSS && moveDistance > bestDistance)) {
+        bestScore = score;
+        bestDistance = moveDistance;
+        best = move;
+        if (score > alpha) {
+          alpha = score;
+          if (alpha >= beta) {
+            break;
+          }
+        }
+      }
+    }
+
+    // Tighten the stored bounds with the result
+    if (bestScore >= beta) {
+      lower = bestScore;
+    } else if (bestScore <= originalAlpha) {
+      upper = bestScore;
+    } else {
+      lower = upper = bestScore;
+    }
+    long newEntry = PRESENT_BIT
+        | (lower + 1)
+        | (long) (upper + 1) << UPPER_SHIFT
+        | (best & 0xFFL) << MOVE_SHIFT
+        | (long) Math.min(bestDistance, 0xFF) << DISTANCE_SHIFT;
+    data[index] = newEntry;
+    checks[index] = key ^ newEntry;
+
+    distance = bestDistance;
+    bestMove = best;
+    return bestScore;
+  }
+
+  /**
+   * Writes the legal moves to the given buffer, hash move first and then moves that win a
+   * microboard. Returns their number, or -1 with the winning move first if one wins the game.
+   */
+  private int generateMoves(int[] moves, int hashMove) {
+    int closed = macroboards[PLAYER_1] | macroboards[PLAYER_2];
+    int boards;
+    if (nextMacroInd == ANY_MACRO_INDEX) {
+      boards = FULL_MASK & ~closed;
+    } else {
+      boards = ((closed & (1 << nextMacroInd)) == 0) ? 1 << nextMacroInd : EMPTY_MASK;
+    }
+
+    int[] ownMicroboards = microboards[currentPlayer];
+    int ownMacroboard = macroboards[currentPlayer];
+    int numMoves = 0;
+    int numQuiet = 0;
+    for (; boards != 0; boards &= boards - 1) {
+      int macroInd = Integer.numberOfTrailingZeros(boards);
+      int empty = FULL_MASK
+          & ~(microboards[PLAYER_1][macroInd] | microboards[PLAYER_2][macroInd]);
+      int completing = empty & lineCompletingMask(ownMicroboards[macroInd]);
+      if (completing != 0 && isWin(ownMacroboard | 1 << macroInd)) {
+        moves[0] = macroInd * MICROBOARD_SIZE + Integer.numberOfTrailingZeros(completing);
+        return -1;
+      }
+      for (int mask = completing; mask != 0; mask &= mask - 1) {
+        moves[numMoves++] = macroInd * MICROBOARD_SIZE + Integer.numberOfTrailingZeros(mask);
+      }
+      for (int mask = empty & ~completing; mask != 0; mask &= mask - 1) {
+        quietMoves[numQuiet++] = macroInd * MICROBOARD_SIZE + Integer.numberOfTrailingZeros(mask);
+      }
+    }
+    System.arraycopy(quietMoves, 0, moves, numMoves, numQuiet);
+    numMoves += numQuiet;
+
+    if (hashMove != -1) {
+      for (int i = 0; i < numMoves; i++) {
+        if (moves[i] == hashMove) {
+          System.arraycopy(moves, 0, moves, 1, i);
+          moves[0] = hashMove;
+          break;
+        }
+      }
+    }
+    return numMoves;
+  }
+
+  private void doMove(int move) {
+    int macroInd = move / MICROBOARD_SIZE;
+    int microInd = move % MICROBOARD_SIZE;
+    nextMacroIndHistory[ply++] = nextMacroInd;
+
+    int microboard = microboards[currentPlayer][macroInd] |= 1 << microInd;
+    if (isWin(microboard)) {
+      macroboards[currentPlayer] |= 1 << macroInd;
+    }
+    key ^= CELL_KEYS[currentPlayer][move];
+
+    key ^= NEXT_MACRO_INDEX_KEYS[nextMacroInd + 1];
+    boolean sentToWon = ((macroboards[PLAYER_1] | macroboards[PLAYER_2]) & (1 << microInd)) != 0;
+    nextMacroInd = sentToWon ? ANY_MACRO_INDEX : microInd;
+    key ^= NEXT_MACRO_INDEX_KEYS[nextMacroInd + 1];
+
+    currentPlayer = swapPlayer(currentPlayer);
+  }
+
+  private void undoMove(int move) {
+    int macroInd = move / MICROBOARD_SIZE;
+    int microInd = move % MICROBOARD_SIZE;
+    currentPlayer = swapPlayer(currentPlayer);
+
+    key ^= NEXT_MACRO_INDEX_KEYS[nextMacroInd + 1];
+    nextMacroInd = nextMacroIndHistory[--ply];
+    key ^= NEXT_MACRO_INDEX_KEYS[nextMacroInd + 1];
+
+    key ^= CELL_KEYS[currentPlayer][move];
+    microboards[currentPlayer][macroInd] &= ~(1 << microInd);
+    // Won microboards take no more moves, so this move must have won it
+    macroboards[currentPlayer] &= ~(1 << macroInd);
+  }
+
+  private long computeKey() {
+    long key = NEXT_MACRO_INDEX_KEYS[nextMacroInd + 1];
+    for (int player = PLAYER_1; player <= NUM_PLAYERS; player++) {
+      for (int macroInd = 0; macroInd < MACROBOARD_SIZE; macroInd++) {
+        for (int mask = microboards[player][macroInd]; mask != 0; mask &= mask - 1) {
+          int move = macroInd * MICROBOARD_SIZE + Integer.numberOfTrailingZeros(mask);
+          key ^= CELL_KEYS[player][move];
+        }
+      }
+    }
+    return key;
+  }
+}
@@ -1,7 +1,6 @@
 package bot;
 
-import static bot.Util.PLAYER_1;
-import static bot.Util.PLAYER_2;
+import static bot.Util.*;
 
 /**
  * @author Vance Zuo
@@ -16,7 +15,9 @@ public class EvaluatedGame extends Game {
 
   private ZobristKey key;
   private Weights weights;
+  private Features.ScoreTables scoreTables;
   private Features features;
+  private EvaluationCache evaluationCache;
 
   public EvaluatedGame() {
     this(new Weights());
@@ -30,11 +31,13 @@ public class EvaluatedGame extends Game {
   public EvaluatedGame(EvaluatedGame game) {
     super(game);
     init(game.weights);
+    this.evaluationCache = game.evaluationCache;
   }
 
   private void init(Weights weights) {
     this.key = new ZobristKey(this);
     this.weights = weights;
+    this.scoreTables = weights.getScoreTables();
     this.features = new Features(this);
   }
 
@@ -42,13 +45,35 @@ public class EvaluatedGame extends Game {
     return key.getKey();
   }
 
+  public EvaluationCache getEvaluationCache() {
+    return evaluationCache;
+  }
+
+  /**
+   * Sets the cache used by {@link #evaluate()} (shared with copies made afterwards), or null to
+   * evaluate without one.
+   */
+  public void setEvaluationCache(EvaluationCache evaluationCache) {
+    this.evaluationCache = evaluationCache;
+  }
+
   public int evaluate() {
-    return features.score(weights);
+    if (evaluationCache == null) {
+      return features.score(scoreTables);
+    }
+    long key = getZobristKey();
+    int score = evaluationCache.get(key);
+    if (score == EvaluationCache.MISSING_SCORE) {
+      score = features.score(scoreTables);
+      evaluationCache.put(key, score);
+    }
+    return score;
   }
 
   public void unsafeDoMove(int move) {
     int player = getCurrentPlayer();
     int prevNextMacroInd = getNextMacroIndex();
+    int prevMacroboard = getMacroboardMask(player);
 
     super.unsafeDoMove(move);
 
@@ -56,11 +81,17 @@ public class EvaluatedGame extends Game {
 
     key.updateForIndex(move, player);
     key.updateForNextMacroInd(prevNextMacroInd, currentNextMacroInd);
+
+    features.updateForMacroIndex(macroIndex(move));
+    if (getMacroboardMask(player) != prevMacroboard) {
+      features.updateForMacroboard();
+    }
   }
 
   public void unsafeUndoMove() {
     int move = getLastMove();
     int currentNextMacroInd = getNextMacroIndex();
+    int currentMacroboard = getMacroboardMask(swapPlayer(getCurrentPlayer()));
 
     super.unsafeUndoMove();
 
@@ -69,5 +100,22 @@ public class EvaluatedGame extends Game {
 
     key.updateForIndex(move, player);
     key.updateForNextMacroInd(currentNextMacroInd, prevNextMacroInd);
+
+    features.updateForMacroIndex(macroIndex(move));
+    if (getMacroboardMask(player) != currentMacroboard) {
+      features.updateForMacroboard();
+    }
+  }
+
+  public void doNullMove() {
+    int prevNextMacroInd = getNextMacroIndex();
+    super.doNullMove();
+    key.updateForNullMove(prevNextMacroInd, getNextMacroIndex());
+  }
+
+  public void undoNullMove() {
+    int currentNextMacroInd = getNextMacroIndex();
+    super.undoNullMove();
+    key.updateForNullMove(currentNextMacroInd, getNextMacroIndex());
   }
 }
@@ -0,0 +1,76 @@
+package bot;
+
+/**
+ * @author Vance Zuo
+ */
+public class EvaluationCache {
+  /**
+   * Counters are not synchronized, so they are approximate when the cache is shared.
+   */
+  public static class Stats {
+    public int gets, hits;
+
+    @Override
+    public String toString() {
+      return String.format(
+          "EvaluationCache.Stats(%s=%s, %s=%s)",
+          "gets", gets,
+          "hits", hits);
+    }
+  }
+
+  public static final int DEFAULT_LOG_SIZE = 16;
+
+  // Returned on a miss; no evaluation comes close to it
+  public static final int MISSING_SCORE = Integer.MIN_VALUE;
+
+  // Direct-mapped (key ^ score, score) pairs, so torn reads between threads fail verification
+  private final long[] keys;
+  private final int[] scores;
+  private Stats stats;
+
+  public EvaluationCache(int logSize) {
+    keys = new long[1 << logSize];
+    scores = new int[1 << logSize];
+    stats = new Stats();
+  }
+
+  public EvaluationCache() {
+    this(DEFAULT_LOG_SIZE);
+  }
+
+  public int size() {
+    return keys.length;
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  public void resetStats() {
+    stats = new Stats();
+  }
+
+  public int get(long key) {
+    stats.gets++;
+
+    int index = keyToIndex(key);
+    int score = scores[index];
+    if ((keys[index] ^ score) != key) {
+      return MISSING_SCORE;
+    }
+
+    stats.hits++;
+    return score;
+  }
+
+  public void put(long key, int score) {
+    int index = keyToIndex(key);
+    keys[index] = key ^ score;
+    scores[index] = score;
+  }
+
+  private int keyToIndex(long key) {
+    return (int) (key & (keys.length - 1));
+  }
+}
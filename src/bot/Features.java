@@ -10,57 +10,78 @@ import static bot.Util.*;
 public class Features {
 
   private static class Precomputed {
-    private static int NUM_BOARDS = 19683; // 3**9
+    private static final int NUM_BOARDS = 19683; // 3**9
 
-    private static final int[][][] ONE_IN_ROW_TABLE;
-    private static final int[][][] TWO_IN_ROW_TABLE;
+    // Line counts by [table index][vector type][player - 1], flattened with these strides
+    private static final int VECTOR_TYPE_STRIDE = NUM_PLAYERS;
+    private static final int TABLE_INDEX_STRIDE = NUM_VECTOR_TYPES * VECTOR_TYPE_STRIDE;
 
-    static {
-      ONE_IN_ROW_TABLE = new int[NUM_BOARDS][NUM_VECTOR_TYPES][NUM_PLAYERS];
-      TWO_IN_ROW_TABLE = new int[NUM_BOARDS][NUM_VECTOR_TYPES][NUM_PLAYERS];
-      generateBoardsAndComputeLineBoardTables();
-    }
+    private static final byte[] ONE_IN_ROW_TABLE;
+    private static final byte[] TWO_IN_ROW_TABLE;
 
-    private static void generateBoardsAndComputeLineBoardTables() {
-      generateBoardsAndComputeLineBoardTables(new int[MACROBOARD_SIZE], 0);
-    }
+    // Base 3 value of a 9-bit mask, with micro/macro index 0 as the most significant digit
+    private static final int[] MASK_TO_TERNARY;
 
-    private static void generateBoardsAndComputeLineBoardTables(int[] board, int boardIndex) {
-      if (boardIndex >= board.length) {
-        computeLineBoardTable(board);
-        return;
+    static {
+      MASK_TO_TERNARY = new int[FULL_MASK + 1];
+      for (int mask = 0; mask <= FULL_MASK; mask++) {
+        int ternary = 0;
+        for (int i = 0; i < MACROBOARD_SIZE; i++) {
+          ternary = ternary * (NUM_PLAYERS + 1) + ((mask >> i) & 1);
+        }
+        MASK_TO_TERNARY[mask] = ternary;
       }
-      final int[] players = {PLAYER_NONE, PLAYER_1, PLAYER_2};
-      for (int player : players) {
-        board[boardIndex] = player;
-        generateBoardsAndComputeLineBoardTables(board, boardIndex + 1);
+      ONE_IN_ROW_TABLE = new byte[NUM_BOARDS * TABLE_INDEX_STRIDE];
+      TWO_IN_ROW_TABLE = new byte[NUM_BOARDS * TABLE_INDEX_STRIDE];
+      computeLineBoardTables();
+    }
+
+    private static void computeLineBoardTables() {
+      int[] board = new int[MACROBOARD_SIZE];
+      for (int tableIndex = 0; tableIndex < NUM_BOARDS; tableIndex++) {
+        for (int i = board.length - 1, digits = tableIndex; i >= 0; i--) {
+          board[i] = digits % (NUM_PLAYERS + 1);
+          digits /= NUM_PLAYERS + 1;
+        }
+        computeLineBoardTable(board, tableIndex);
       }
     }
 
-    private static void computeLineBoardTable(int[] board) {
+    private static void computeLineBoardTable(int[] board, int tableIndex) {
       final int[] players = {PLAYER_MAX, PLAYER_MIN};
       for (int player : players) {
-        int tableIndex = boardToTableIndex(board);
         int playerIndex = player - 1;
         int[][] vectors = macroWinVectors();
         int[] vectorTypes = winVectorTypes();
         for (int i = 0; i < vectors.length; i++) {
           int[] vector = vectors[i];
-          int vectorType = vectorTypes[i];
+          int offset = offset(tableIndex, vectorTypes[i]) + playerIndex;
           int unopposedInRow = computeUnopposedInRow(player, board, vector);
           switch (unopposedInRow) {
             case 3:
               // fall through
             case 2:
-              TWO_IN_ROW_TABLE[tableIndex][vectorType][playerIndex]++;
+              TWO_IN_ROW_TABLE[offset]++;
               // fall through
             case 1:
-              ONE_IN_ROW_TABLE[tableIndex][vectorType][playerIndex]++;
+              ONE_IN_ROW_TABLE[offset]++;
           }
         }
       }
     }
 
+    private static int offset(int tableIndex, int vectorType) {
+      return tableIndex * TABLE_INDEX_STRIDE + vectorType * VECTOR_TYPE_STRIDE;
+    }
+
+    /**
+     * Returns the PLAYER_MAX minus PLAYER_MIN count of the given line table.
+     */
+    private static int difference(byte[] table, int tableIndex, int vectorType) {
+      int offset = offset(tableIndex, vectorType);
+      return table[offset] - table[offset + 1];
+    }
+
     private static int computeUnopposedInRow(int player, int[] board, int[] vector) {
       int unopposedInRow = 0;
       for (int i : vector) {
@@ -73,24 +94,43 @@ public class Features {
       return unopposedInRow;
     }
 
-    private static int boardToTableIndex(int[] board) {
-      int factor = NUM_PLAYERS + 1;
-      int index = 0;
-      for (int i = 0; i < board.length; i++) {
-        index *= factor;
-        index += board[i];
+    private static int masksToTableIndex(int player1Mask, int player2Mask) {
+      return MASK_TO_TERNARY[player1Mask] * PLAYER_1 + MASK_TO_TERNARY[player2Mask] * PLAYER_2;
+    }
+  }
+
+  /**
+   * Scores of every microboard (per microboard type) and macroboard pattern for fixed weights,
+   * indexed by table index.
+   */
+  public static class ScoreTables {
+    private final int[] macroboardScores;
+    private final int[][] microboardScores;
+    private final int anyNextMacroIndScore;
+
+    public ScoreTables(Weights weights) {
+      macroboardScores = new int[Precomputed.NUM_BOARDS];
+      microboardScores = new int[NUM_MICROBOARD_TYPES][Precomputed.NUM_BOARDS];
+      for (int tableIndex = 0; tableIndex < Precomputed.NUM_BOARDS; tableIndex++) {
+        macroboardScores[tableIndex] = scorePattern(
+            tableIndex, weights.macroboardOneInRow, weights.macroboardTwoInRow);
+        for (int type = 0; type < NUM_MICROBOARD_TYPES; type++) {
+          microboardScores[type][tableIndex] = scorePattern(
+              tableIndex, weights.microboardOneInRow[type], weights.microboardTwoInRow[type]);
+        }
       }
-      return index;
+      anyNextMacroIndScore = weights.anyNextMacroInd;
     }
 
-    private static int boardToTableIndex(int[] board, int[] indexes) {
-      int factor = NUM_PLAYERS + 1;
-      int index = 0;
-      for (int i : indexes) {
-        index *= factor;
-        index += board[i];
+    private static int scorePattern(int tableIndex, int[] oneInRowWeights, int[] twoInRowWeights) {
+      int score = 0;
+      for (int vectorType = 0; vectorType < NUM_VECTOR_TYPES; vectorType++) {
+        int oneInRow = Precomputed.difference(Precomputed.ONE_IN_ROW_TABLE, tableIndex, vectorType);
+        int twoInRow = Precomputed.difference(Precomputed.TWO_IN_ROW_TABLE, tableIndex, vectorType);
+        score += oneInRow * oneInRowWeights[vectorType];
+        score += twoInRow * twoInRowWeights[vectorType];
       }
-      return index;
+      return score;
     }
   }
 
@@ -100,109 +140,73 @@ public class Features {
       SIDE, CENTER, SIDE,
       CORNER, SIDE, CORNER};
 
+  // Each microboard overwrites its type's features in macro index order, so only the last
+  // microboard of each type determines them
+  private static final int[] FEATURE_MACRO_INDEXES = new int[NUM_MICROBOARD_TYPES];
+  static {
+    for (int i = 0; i < MACROBOARD_SIZE; i++) {
+      FEATURE_MACRO_INDEXES[MICROBOARD_TYPES[i]] = i;
+    }
+  }
+
   private final Game game;
 
-  private int[] macroboardOneInRow;
-  private int[] macroboardTwoInRow;
-  private int[][] microboardOneInRow;
-  private int[][] microboardTwoInRow;
-  private int anyNextMacroInd;
+  private int macroboardTableIndex;
+  private int[] microboardTableIndexes;
 
   public Features(Game game) {
     this.game = game;
-    this.macroboardOneInRow = new int[NUM_VECTOR_TYPES];
-    this.macroboardTwoInRow = new int[NUM_VECTOR_TYPES];
-    this.microboardOneInRow = new int[NUM_MICROBOARD_TYPES][NUM_VECTOR_TYPES];
-    this.microboardTwoInRow = new int[NUM_MICROBOARD_TYPES][NUM_VECTOR_TYPES];
+    this.microboardTableIndexes = new int[MACROBOARD_SIZE];
+    computeFeatures();
   }
 
   public void computeFeatures() {
-    computeMacroboardOneInRow();
-    computeMacroboardTwoInRow();
-    computeMicroboardOneInRow();
-    computeMicroboardTwoInRow();
-    computeAnyNextMacroInd();
-  }
-
-  private void computeMacroboardOneInRow() {
-    int tableIndex = Precomputed.boardToTableIndex(game.getMacroboard());
-    for (int vectorType = 0; vectorType < NUM_VECTOR_TYPES; vectorType++) {
-      int[] oneInRow = Precomputed.ONE_IN_ROW_TABLE[tableIndex][vectorType];
-      macroboardOneInRow[vectorType] = oneInRow[0] - oneInRow[1];
+    updateForMacroboard();
+    for (int i = 0; i < MACROBOARD_SIZE; i++) {
+      updateForMacroIndex(i);
     }
   }
 
-  private void computeMacroboardTwoInRow() {
-    int tableIndex = Precomputed.boardToTableIndex(game.getMacroboard());
-    for (int vectorType = 0; vectorType < NUM_VECTOR_TYPES; vectorType++) {
-      int[] twoInRow = Precomputed.TWO_IN_ROW_TABLE[tableIndex][vectorType];
-      macroboardTwoInRow[vectorType] = twoInRow[0] - twoInRow[1];
-    }
+  /**
+   * Updates the macroboard features after a microboard was won or un-won.
+   */
+  public void updateForMacroboard() {
+    macroboardTableIndex = Precomputed.masksToTableIndex(
+        game.getMacroboardMask(PLAYER_1), game.getMacroboardMask(PLAYER_2));
   }
 
-  private void computeMicroboardOneInRow() {
-    for (int i = 0; i < MACROBOARD_SIZE; i++) {
-      computeMicroboardOneInRow(i);
-    }
+  /**
+   * Updates the microboard features after a move was done or undone in the given microboard.
+   */
+  public void updateForMacroIndex(int macroInd) {
+    microboardTableIndexes[macroInd] = Precomputed.masksToTableIndex(
+        game.getMicroboardMask(PLAYER_1, macroInd), game.getMicroboardMask(PLAYER_2, macroInd));
   }
 
-  private void computeMicroboardOneInRow(int macroInd) {
-    int microboardType = MICROBOARD_TYPES[macroInd];
-    int tableIndex = Precomputed.boardToTableIndex(game.getBoard(), indexesInMacroIndex(macroInd));
-    for (int vectorType = 0; vectorType < NUM_VECTOR_TYPES; vectorType++) {
-      int[] oneInRow = Precomputed.ONE_IN_ROW_TABLE[tableIndex][vectorType];
-      microboardOneInRow[microboardType][vectorType] = oneInRow[0] - oneInRow[1];
-    }
-  }
-
-  private void computeMicroboardTwoInRow() {
-    for (int i = 0; i < MACROBOARD_SIZE; i++) {
-      computeMicroboardTwoInRow(i);
-    }
+  public int getMacroboardTableIndex() {
+    return macroboardTableIndex;
   }
 
-  private void computeMicroboardTwoInRow(int macroInd) {
-    int microboardType = MICROBOARD_TYPES[macroInd];
-    int tableIndex = Precomputed.boardToTableIndex(game.getBoard(), indexesInMacroIndex(macroInd));
-    for (int vectorType = 0; vectorType < NUM_VECTOR_TYPES; vectorType++) {
-      int[] twoInRow = Precomputed.TWO_IN_ROW_TABLE[tableIndex][vectorType];
-      microboardTwoInRow[microboardType][vectorType] = twoInRow[0] - twoInRow[1];
-    }
+  public int getMicroboardTableIndex(int macroInd) {
+    return microboardTableIndexes[macroInd];
   }
 
-  public void computeAnyNextMacroInd() {
-    anyNextMacroInd = (game.getNextMacroIndex() == ANY_MACRO_INDEX)
+  public int computeAnyNextMacroInd() {
+    return (game.getNextMacroIndex() == ANY_MACRO_INDEX)
         ? ((game.getCurrentPlayer() == PLAYER_MAX) ? 1 : -1)
         : 0;
   }
 
-  public int score(Weights weights) {
-    computeFeatures();
-
-    int score = 0;
-    score += dot(macroboardOneInRow, weights.macroboardOneInRow);
-    score += dot(macroboardTwoInRow, weights.macroboardTwoInRow);
-    score += dot(microboardOneInRow, weights.microboardOneInRow);
-    score += dot(microboardTwoInRow, weights.microboardTwoInRow);
-    score += anyNextMacroInd * weights.anyNextMacroInd;
-    return score;
-  }
-
-  private int dot(int[][] a0, int[][] a1) {
-    int sum = 0;
-    for (int i = 0; i < a0.length; i++) {
-      for (int j = 0; j < a0[0].length; j++) {
-        sum += a0[i][j] * a1[i][j];
-      }
+  public int score(ScoreTables tables) {
+    int score = tables.macroboardScores[macroboardTableIndex];
+    for (int type = 0; type < NUM_MICROBOARD_TYPES; type++) {
+      score += tables.microboardScores[type][microboardTableIndexes[FEATURE_MACRO_INDEXES[type]]];
     }
-    return sum;
+    score += computeAnyNextMacroInd() * tables.anyNextMacroIndScore;
+    return score;
   }
 
-  private int dot(int[] a0, int[] a1) {
-    int sum = 0;
-    for (int i = 0; i < a0.length; i++) {
-      sum += a0[i] * a1[i];
-    }
-    return sum;
+  public int score(Weights weights) {
+    return score(weights.getScoreTables());
   }
 }
@@ -10,57 +10,107 @@ import static bot.Util.*;
  * @author Vance Zuo
  */
 public class Game {
-  private int[] board;
-  private int[] macroboard;
+  // For generateRandomMove() without a generator, as Game is used from several threads
+  private static final ThreadLocal<SplitMixRandom> RANDOM =
+      ThreadLocal.withInitial(SplitMixRandom::new);
+
+  // Bitboards: bit i of a microboard mask is micro index i, bit i of a macroboard mask is
+  // macro index i
+  private int[][] microboards; // [PLAYER_NONE (unused), PLAYER_1, PLAYER_2][macro index]
+  private int[] macroboards; // [PLAYER_NONE (unused), PLAYER_1, PLAYER_2]
+  private int fullMacroboard;
   private int nextMacroInd;
   private int currentPlayer;
   private int winner;
   private HistoryStack history;
 
   public Game() {
-    board = new int[ROWS * COLS];
-    macroboard = new int[MACRO_ROWS * MACRO_COLS];
-    history = new HistoryStack(MAX_MOVES);
+    microboards = new int[NUM_PLAYERS + 1][MACROBOARD_SIZE];
+    macroboards = new int[NUM_PLAYERS + 1];
+    history = new HistoryStack(MAX_MOVES + MAX_NULL_MOVES);
     reset();
   }
 
   public Game(Game game) {
-    board = Arrays.copyOf(game.board, game.board.length);
-    macroboard = Arrays.copyOf(game.macroboard, game.macroboard.length);
+    microboards = new int[NUM_PLAYERS + 1][];
+    for (int player = 0; player < microboards.length; player++) {
+      microboards[player] = Arrays.copyOf(game.microboards[player], MACROBOARD_SIZE);
+    }
+    macroboards = Arrays.copyOf(game.macroboards, game.macroboards.length);
+    fullMacroboard = game.fullMacroboard;
     nextMacroInd = game.nextMacroInd;
     currentPlayer = game.currentPlayer;
     winner = game.winner;
     history = new HistoryStack(game.history);
   }
 
-  Game(int[] board,
-       int[] macroboard,
-       int nextMacroInd,
-       int currentPlayer,
-       int winner,
-       HistoryStack history) {
-    this.board = board;
-    this.macroboard = macroboard;
-    this.nextMacroInd = nextMacroInd;
-    this.currentPlayer = currentPlayer;
-    this.winner = winner;
-    this.history = history;
-  }
-
   public void reset() {
-    Arrays.fill(board, PLAYER_NONE);
-    Arrays.fill(macroboard, PLAYER_NONE);
+    for (int[] microboard : microboards) {
+      Arrays.fill(microboard, EMPTY_MASK);
+    }
+    Arrays.fill(macroboards, EMPTY_MASK);
+    fullMacroboard = EMPTY_MASK;
     nextMacroInd = ANY_MACRO_INDEX;
     currentPlayer = PLAYER_1;
     winner = PLAYER_NONE;
     history.clear();
   }
 
+  public int getCell(int ind) {
+    int macroInd = macroIndex(ind);
+    int bit = 1 << microIndex(ind);
+    if ((microboards[PLAYER_1][macroInd] & bit) != 0) {
+      return PLAYER_1;
+    }
+    if ((microboards[PLAYER_2][macroInd] & bit) != 0) {
+      return PLAYER_2;
+    }
+    return PLAYER_NONE;
+  }
+
+  public int getMacroCell(int macroInd) {
+    int bit = 1 << macroInd;
+    if ((macroboards[PLAYER_1] & bit) != 0) {
+      return PLAYER_1;
+    }
+    if ((macroboards[PLAYER_2] & bit) != 0) {
+      return PLAYER_2;
+    }
+    return PLAYER_NONE;
+  }
+
+  public int getMicroboardMask(int player, int macroInd) {
+    return microboards[player][macroInd];
+  }
+
+  public int getMacroboardMask(int player) {
+    return macroboards[player];
+  }
+
+  public int getFullMacroboardMask() {
+    return fullMacroboard;
+  }
+
+  /**
+   * Returns a new array of the cell owners, by index. Prefer {@link #getCell(int)} or the
+   * mask getters in hot code.
+   */
   public int[] getBoard() {
+    int[] board = new int[BOARD_SIZE];
+    for (int i = 0; i < BOARD_SIZE; i++) {
+      board[i] = getCell(i);
+    }
     return board;
   }
 
+  /**
+   * Returns a new array of the microboard winners, by macro index.
+   */
   public int[] getMacroboard() {
+    int[] macroboard = new int[MACROBOARD_SIZE];
+    for (int i = 0; i < MACROBOARD_SIZE; i++) {
+      macroboard[i] = getMacroCell(i);
+    }
     return macroboard;
   }
 
@@ -93,7 +143,11 @@ public class Game {
 
     for (int row = 0; row < ROWS; row++) {
       for (int col = 0; col < COLS; col++) {
-        board[index(row, col)] = field.getPlayerId(col, row);
+        int player = field.getPlayerId(col, row);
+        if (player != PLAYER_NONE) {
+          int ind = index(row, col);
+          microboards[player][macroIndex(ind)] |= 1 << microIndex(ind);
+        }
       }
     }
 
@@ -105,9 +159,13 @@ public class Game {
         if (macroId == -1) {
           numMoveOptions++;
           nextMacroInd = numMoveOptions > 1 ? ANY_MACRO_INDEX : index;
-          macroId = PLAYER_NONE;
+        } else if (macroId != PLAYER_NONE) {
+          macroboards[macroId] |= 1 << index;
+        }
+        if ((microboards[PLAYER_1][index] | microboards[PLAYER_2][index]) == FULL_MASK) {
+          fullMacroboard |= 1 << index;
         }
-        macroboard[index++] = macroId;
+        index++;
       }
     }
 
@@ -121,11 +179,25 @@ public class Game {
   }
 
   public boolean isFinished() {
-    return hasWinner() || !unsafeGenerateMoves().iterator().hasNext();
+    return hasWinner() || !unsafeHasMoves();
+  }
+
+  public boolean unsafeHasMoves() {
+    int closedMacroboard = macroboards[PLAYER_1] | macroboards[PLAYER_2] | fullMacroboard;
+    if (nextMacroInd == ANY_MACRO_INDEX) {
+      return closedMacroboard != FULL_MASK;
+    }
+    return (closedMacroboard & (1 << nextMacroInd)) == 0;
   }
 
   public boolean isEmpty(int ind) {
-    return board[ind] == PLAYER_NONE;
+    int macroInd = macroIndex(ind);
+    int occupied = microboards[PLAYER_1][macroInd] | microboards[PLAYER_2][macroInd];
+    return (occupied & (1 << microIndex(ind))) == 0;
+  }
+
+  public boolean isWonMacroboard(int macroInd) {
+    return ((macroboards[PLAYER_1] | macroboards[PLAYER_2]) & (1 << macroInd)) != 0;
   }
 
   public boolean canDoMove(int ind) {
@@ -133,6 +205,7 @@ public class Game {
         && ind >= 0
         && ind < BOARD_SIZE
         && isEmpty(ind)
+        && !isWonMacroboard(macroIndex(ind))
         && (nextMacroInd == ANY_MACRO_INDEX || nextMacroInd == macroIndex(ind));
   }
 
@@ -141,10 +214,7 @@ public class Game {
   }
 
   public boolean unsafeCheckCompletesLine(int ind) {
-    board[ind] = currentPlayer;
-    boolean completesLine = checkMicroWin(ind);
-    board[ind] = PLAYER_NONE;
-    return completesLine;
+    return isWin(microboards[currentPlayer][macroIndex(ind)] | (1 << microIndex(ind)));
   }
 
   public boolean checkCompletesLine(int ind) {
@@ -154,12 +224,17 @@ public class Game {
   public void unsafeDoMove(int ind) {
     history.push(ind, nextMacroInd);
 
-    board[ind] = currentPlayer;
-    if (checkMicroWin(ind)) {
-      macroboard[macroIndex(ind)] = currentPlayer;
+    int macroInd = macroIndex(ind);
+    int microInd = microIndex(ind);
+    int microboard = microboards[currentPlayer][macroInd] |= 1 << microInd;
+    if (isWin(microboard)) {
+      macroboards[currentPlayer] |= 1 << macroInd;
+    }
+    if ((microboards[PLAYER_1][macroInd] | microboards[PLAYER_2][macroInd]) == FULL_MASK) {
+      fullMacroboard |= 1 << macroInd;
     }
-    nextMacroInd = microIndex(ind);
-    if (macroboard[nextMacroInd] != PLAYER_NONE) {
+    nextMacroInd = microInd;
+    if (isWonMacroboard(nextMacroInd)) {
       nextMacroInd = ANY_MACRO_INDEX;
     }
     updateWinner();
@@ -174,6 +249,10 @@ public class Game {
     return true;
   }
 
+  /**
+   * Passes the turn, with a free choice of microboard. At most {@link Util#MAX_NULL_MOVES} may be
+   * done at once.
+   */
   public void doNullMove() {
     history.push(-1, nextMacroInd);
 
@@ -186,11 +265,14 @@ public class Game {
     int prevNextMacroInd = history.peekMacroInd();
     history.pop();
 
-    board[prevInd] = PLAYER_NONE;
-    macroboard[macroIndex(prevInd)] = PLAYER_NONE;
+    currentPlayer = swapPlayer(currentPlayer);
+    int macroInd = macroIndex(prevInd);
+    int macroClearMask = ~(1 << macroInd);
+    microboards[currentPlayer][macroInd] &= ~(1 << microIndex(prevInd));
+    macroboards[currentPlayer] &= macroClearMask;
+    fullMacroboard &= macroClearMask;
     nextMacroInd = prevNextMacroInd;
     winner = PLAYER_NONE;
-    currentPlayer = swapPlayer(currentPlayer);
   }
 
   public boolean undoMove() {
@@ -210,124 +292,110 @@ public class Game {
     currentPlayer = swapPlayer(currentPlayer);
   }
 
-  public Iterable<Integer> generateMoves() {
+  /**
+   * Writes the legal moves to the given buffer (of at least {@link Util#MAX_MOVES} length) in
+   * ascending index order, and returns the number of moves written.
+   */
+  public int generateMoves(int[] moves) {
     if (hasWinner()) {
-      return Collections.emptyList();
+      return 0;
     }
-    return unsafeGenerateMoves();
+    return unsafeGenerateMoves(moves);
   }
 
-  public Iterable<Integer> unsafeGenerateMoves() {
-    if (nextMacroInd == ANY_MACRO_INDEX) {
-      return unsafeGenerateMovesEntireBoard();
-    } else {
-      return unsafeGenerateMovesNextMacroboard();
-    }
+  public int unsafeGenerateMoves(int[] moves) {
+    return unsafeGenerateMoves(moves, false);
   }
 
-  public int generateRandomMove() {
-    Random rand = new Random();
-
-    List<Integer> moves = new ArrayList<>();
-    for (int move : generateMoves()) {
-      moves.add(move);
-    }
-
-    int i = 0;
-    for (int move : moves) {
-      if (rand.nextInt(moves.size() - i) == 0)
-        return move;
-      i++;
-    }
+  /**
+   * Like {@link #unsafeGenerateMoves(int[])}, but only writes the moves for which
+   * {@link #unsafeCheckCompletesLine(int)} holds.
+   */
+  public int unsafeGenerateLineCompletingMoves(int[] moves) {
+    return unsafeGenerateMoves(moves, true);
+  }
 
-    return -1; // should not reach this point
-  }
-
-  private Iterable<Integer> unsafeGenerateMovesEntireBoard() {
-    return new Iterable<Integer>() {
-      @Override
-      public Iterator<Integer> iterator() {
-        return new Iterator<Integer>() {
-          int potentialMove = 0;
-
-          @Override
-          public boolean hasNext() {
-            while (potentialMove < BOARD_SIZE) {
-              if (board[potentialMove] == PLAYER_NONE
-                  && macroboard[macroIndex(potentialMove)] == PLAYER_NONE)
-                return true;
-              potentialMove++;
-            }
-            return false;
-          }
-
-          @Override
-          public Integer next() {
-            if (!hasNext())
-              throw new NoSuchElementException();
-            return potentialMove++;
-          }
-        };
+  private int unsafeGenerateMoves(int[] moves, boolean lineCompletingOnly) {
+    int numMoves = 0;
+    if (nextMacroInd != ANY_MACRO_INDEX) {
+      int[] indexes = indexesInMacroIndex(nextMacroInd);
+      int mask = unsafeGenerateMoveMask(nextMacroInd, lineCompletingOnly);
+      for (; mask != 0; mask &= mask - 1) {
+        moves[numMoves++] = indexes[Integer.numberOfTrailingZeros(mask)];
       }
-    };
-  }
-
-  private Iterable<Integer> unsafeGenerateMovesNextMacroboard() {
-    return new Iterable<Integer>() {
-      @Override
-      public Iterator<Integer> iterator() {
-        return new Iterator<Integer>() {
-          int[] potentialMoves = indexesInMacroIndex(nextMacroInd);
-          int len = potentialMoves.length;
-          int i = 0;
-
-          @Override
-          public boolean hasNext() {
-            while (i < len) {
-              if (board[potentialMoves[i]] == PLAYER_NONE)
-                return true;
-              i++;
-            }
-            return false;
-          }
-
-          @Override
-          public Integer next() {
-            if (!hasNext())
-              throw new NoSuchElementException();
-            return potentialMoves[i++];
-          }
-        };
+      return numMoves;
+    }
+    // Walk the board row by row so moves come out in ascending index order
+    for (int row = 0; row < ROWS; row++) {
+      int macroRowStart = (row / MICRO_ROWS) * MACRO_COLS;
+      int microRowShift = (row % MICRO_ROWS) * MICRO_COLS;
+      for (int macroCol = 0; macroCol < MACRO_COLS; macroCol++) {
+        int macroInd = macroRowStart + macroCol;
+        int mask = unsafeGenerateMoveMask(macroInd, lineCompletingOnly) >> microRowShift;
+        for (mask &= 0b111; mask != 0; mask &= mask - 1) {
+          moves[numMoves++] =
+              index(row, macroCol * MICRO_COLS + Integer.numberOfTrailingZeros(mask));
+        }
       }
-    };
+    }
+    return numMoves;
   }
 
-  private void updateWinner() {
-    winner = checkMacroWin() ? currentPlayer : PLAYER_NONE;
+  private int unsafeGenerateMoveMask(int macroInd, boolean lineCompletingOnly) {
+    int mask = unsafeGenerateMoveMask(macroInd);
+    return lineCompletingOnly
+        ? mask & lineCompletingMask(microboards[currentPlayer][macroInd])
+        : mask;
   }
 
-  private boolean checkMicroWin(int ind) {
-    return checkWin(microboardTopLeftIndex(ind), board, microWinVectors());
+  /**
+   * Returns the mask of legal moves in the given microboard, by micro index.
+   */
+  public int unsafeGenerateMoveMask(int macroInd) {
+    if ((nextMacroInd != ANY_MACRO_INDEX && nextMacroInd != macroInd)
+        || isWonMacroboard(macroInd)) {
+      return EMPTY_MASK;
+    }
+    return FULL_MASK & ~(microboards[PLAYER_1][macroInd] | microboards[PLAYER_2][macroInd]);
   }
 
-  private boolean checkMacroWin() {
-    return checkWin(0, macroboard, macroWinVectors());
+  public int generateRandomMove() {
+    return generateRandomMove(RANDOM.get());
   }
 
-  private boolean checkWin(int startInd, int[] b, int[][] winVectors) {
-    for (int[] winVector : winVectors) {
-      boolean isWin = true;
-      for (int delta : winVector) {
-        if (b[startInd + delta] != currentPlayer) {
-          isWin = false;
-          break;
-        }
-      }
-      if (isWin) {
-        return true;
+  /**
+   * Returns a uniformly random legal move drawn with the given generator, or -1 if there are none.
+   */
+  public int generateRandomMove(SplitMixRandom random) {
+    if (hasWinner() || !unsafeHasMoves()) {
+      return -1;
+    }
+    if (nextMacroInd != ANY_MACRO_INDEX) {
+      int mask = unsafeGenerateMoveMask(nextMacroInd);
+      int microInd = nthSetBit(mask, random.nextInt(Integer.bitCount(mask)));
+      return indexesInMacroIndex(nextMacroInd)[microInd];
+    }
+    int numMoves = 0;
+    for (int macroInd = 0; macroInd < MACROBOARD_SIZE; macroInd++) {
+      numMoves += Integer.bitCount(unsafeGenerateMoveMask(macroInd));
+    }
+    int n = random.nextInt(numMoves);
+    for (int macroInd = 0; ; macroInd++) {
+      int mask = unsafeGenerateMoveMask(macroInd);
+      int count = Integer.bitCount(mask);
+      if (n < count) {
+        return indexesInMacroIndex(macroInd)[nthSetBit(mask, n)];
       }
+      n -= count;
     }
-    return false;
+  }
+
+  private void updateWinner() {
+    winner = checkMacroWin() ? currentPlayer : PLAYER_NONE;
+  }
+
+  private boolean checkMacroWin() {
+    return isWin(macroboards[currentPlayer]);
   }
 
   public String getFormattedBoardString() {
@@ -349,7 +417,7 @@ public class Game {
         sb.append("\n");
       }
 
-      sb.append(charForPlayer(board[i]));
+      sb.append(charForPlayer(getCell(i)));
     }
     return sb.toString();
   }
@@ -362,7 +430,7 @@ public class Game {
       if (rowStart && !boardStart) {
         sb.append("\n");
       }
-      sb.append(charForPlayer(macroboard[i]));
+      sb.append(charForPlayer(getMacroCell(i)));
     }
     return sb.toString();
   }
@@ -370,8 +438,8 @@ public class Game {
   @Override
   public String toString() {
     return String.format("Game(%s=%s, %s=%s, %s=%s, %s=%s, %s=%s, %s=%s)",
-        "board", Arrays.toString(board),
-        "macroboard", Arrays.toString(macroboard),
+        "board", Arrays.toString(getBoard()),
+        "macroboard", Arrays.toString(getMacroboard()),
         "nextMacroInd", nextMacroInd,
         "currentPlayer", currentPlayer,
         "winner", winner,
@@ -390,8 +458,9 @@ public class Game {
       return false;
     }
     Game other = (Game) obj;
-    return Arrays.equals(board, other.board)
-        && Arrays.equals(macroboard, other.macroboard)
+    return Arrays.deepEquals(microboards, other.microboards)
+        && Arrays.equals(macroboards, other.macroboards)
+        && fullMacroboard == other.fullMacroboard
         && nextMacroInd == other.nextMacroInd
         && currentPlayer == other.currentPlayer
         && winner == other.winner
@@ -45,6 +45,10 @@ public class HistoryStack {
     --size;
   }
 
+  public int getMove(int i) {
+    return moves[i];
+  }
+
   public int peekMove() {
     return moves[size - 1];
   }
@@ -4,12 +4,25 @@ import tuning.BotEntry;
 import tuning.GeneticAlgorithm;
 import tuning.Tournament;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static bot.Util.PLAYER_1;
+import static bot.Util.PLAYER_2;
+import static bot.Util.PLAYER_NONE;
 import static bot.Util.index;
 
 /**
  * @author Vance Zuo
  */
 public class Main {
+  private static final String PROOF_STORE_FILENAME = "proofs.bin";
+
   public static void main(String[] args) {
     runBot();
   }
@@ -18,18 +31,151 @@ public class Main {
     new Bot().run();
   }
 
+  /**
+   * Runs the bot with the proof store in the working directory, which outlives the process.
+   */
+  public static void runBotWithProofStore() {
+    Bot bot = new Bot();
+    bot.setProofStore(openProofStore());
+    bot.run();
+  }
+
+  /**
+   * Opens the proof store shared by bots and tuning runs in the working directory, or returns null
+   * if it can't be opened.
+   */
+  public static ProofStore openProofStore() {
+    try {
+      return ProofStore.open(Paths.get(PROOF_STORE_FILENAME), ProofStore.DEFAULT_MEGABYTES);
+    } catch (IOException e) {
+      System.err.println("proof store unavailable: " + e);
+      return null;
+    }
+  }
+
   public static void runTournament() {
     Tournament t = new Tournament(7, 24, BotEntry::getElo);
+    t.setProofStore(openProofStore());
     t.run(new Tournament.RunParameters(6, 4, 10, 9));
   }
 
   public static void runGeneticAlgorithm() {
     GeneticAlgorithm ga = new GeneticAlgorithm();
+    ga.setProofStore(openProofStore());
     ga.prepareNew(new GeneticAlgorithm.PrepareParameters(8, 32, 0));
     ga.prepareContinue();
     ga.run(new GeneticAlgorithm.RunParameters(-1, 0.02, 0.1, 4, 4, 40, 10, 2, 16, 0.125, 0.25));
   }
 
+  /**
+   * Plays timed self-play games between two search option sets from random starts, each start
+   * played with both colors, and prints the score of the first set.
+   */
+  public static void runOptionsMatch(
+      Searcher.Options a, Searcher.Options b, int numStarts, int startLength, int moveTime) {
+    Weights weights = new Weights();
+    int wins = 0, draws = 0, losses = 0;
+    for (int i = 0; i < numStarts; i++) {
+      List<Integer> startMoves = getRandomStartMoves(startLength);
+      for (int color = 0; color < 2; color++) {
+        Match m = (color == 0)
+            ? new Match(weights, a, weights, b)
+            : new Match(weights, b, weights, a);
+        for (int move : startMoves) {
+          m.manualMove(move);
+        }
+        int result = m.playTimed(moveTime) * (color == 0 ? 1 : -1);
+        if (result > 0) wins++;
+        else if (result < 0) losses++;
+        else draws++;
+      }
+      System.out.printf("%s vs %s: +%d =%d -%d\n", a, b, wins, draws, losses);
+    }
+  }
+
+  /**
+   * Like {@link #runOptionsMatch}, but between the alpha-beta searcher with the given options and
+   * the Monte Carlo searcher, and prints the score of the Monte Carlo searcher.
+   */
+  public static void runMonteCarloMatch(
+      Searcher.Options options, int numStarts, int startLength, int moveTime) {
+    Weights weights = new Weights();
+    int wins = 0, draws = 0, losses = 0;
+    for (int i = 0; i < numStarts; i++) {
+      List<Integer> startMoves = getRandomStartMoves(startLength);
+      for (int color = 0; color < 2; color++) {
+        int monteCarloPlayer = (color == 0) ? PLAYER_1 : PLAYER_2;
+        Match m = new Match(weights, options, monteCarloPlayer);
+        for (int move : startMoves) {
+          m.manualMove(move);
+        }
+        int result = m.playTimed(moveTime) * (color == 0 ? 1 : -1);
+        if (result > 0) wins++;
+        else if (result < 0) losses++;
+        else draws++;
+      }
+      System.out.printf("Monte Carlo vs %s: +%d =%d -%d\n", options, wins, draws, losses);
+    }
+  }
+
+  /**
+   * Prints the playouts per second of Monte Carlo searches from the start position, each for the
+   * given time.
+   */
+  public static void runMonteCarloBenchmark(int numSearches, int searchTime, int threads) {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long playouts = 0;
+    for (int i = 0; i < numSearches; i++) {
+      MonteCarloSearcher searcher = new MonteCarloSearcher(new Game());
+      searcher.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(searchTime));
+      searcher.search(executor, threads);
+      playouts += searcher.getPlayouts();
+    }
+    executor.shutdown();
+    System.out.printf(
+        "%d threads: %.0f playouts/s\n", threads, playouts * 1000.0 / (numSearches * searchTime));
+  }
+
+  /**
+   * Prints the random games per second played from the start position by the playout kernel, and
+   * by making random moves on a game for comparison.
+   */
+  public static void runPlayoutBenchmark(int numGames) {
+    Game start = new Game();
+    Playout playout = new Playout(0);
+    long startTime = System.nanoTime();
+    int draws = 0;
+    for (int i = 0; i < numGames; i++) {
+      if (playout.play(start) == PLAYER_NONE) draws++;
+    }
+    long duration = System.nanoTime() - startTime;
+    System.out.printf("Playout: %.0f games/s (%d draws)\n", numGames * 1e9 / duration, draws);
+
+    SplitMixRandom random = new SplitMixRandom(0);
+    startTime = System.nanoTime();
+    draws = 0;
+    for (int i = 0; i < numGames; i++) {
+      Game game = new Game();
+      while (!game.isFinished()) {
+        game.unsafeDoMove(game.generateRandomMove(random));
+      }
+      if (!game.hasWinner()) draws++;
+    }
+    duration = System.nanoTime() - startTime;
+    System.out.printf("Game moves: %.0f games/s (%d draws)\n", numGames * 1e9 / duration, draws);
+  }
+
+  private static List<Integer> getRandomStartMoves(int startLength) {
+    Game start = new Game();
+    List<Integer> startMoves = new ArrayList<>();
+    for (int j = 0; j < startLength; j++) {
+      int move = start.generateRandomMove();
+      startMoves.add(move);
+      start.doMove(move);
+    }
+    return startMoves;
+  }
+
   public static void runTestMatch() {
     Weights w1 = new Weights();
     Weights w2 = new Weights();
@@ -1,5 +1,8 @@
 package bot;
 
+import java.util.concurrent.TimeUnit;
+
+import static bot.Util.MAX_MOVES;
 import static bot.Util.PLAYER_1;
 
 /**
@@ -8,12 +11,38 @@ import static bot.Util.PLAYER_1;
 public class Match {
   private EvaluatedGame g1, g2;
   private Searcher p1, p2;
+  private MonteCarloSearcher m1, m2; // null for alpha-beta players
 
   public Match(Weights w1, Weights w2) {
+    this(w1, Searcher.DEFAULT_OPTIONS, w2, Searcher.DEFAULT_OPTIONS);
+  }
+
+  public Match(Weights w1, Searcher.Options o1, Weights w2, Searcher.Options o2) {
     g1 = new EvaluatedGame(w1);
     g2 = new EvaluatedGame(w2);
-    p1 = new Searcher(g1);
-    p2 = new Searcher(g2);
+    p1 = new Searcher(g1, o1);
+    p2 = new Searcher(g2, o2);
+  }
+
+  /**
+   * Creates a match between an alpha-beta searcher and a Monte Carlo searcher, which plays as the
+   * given player. Monte Carlo players only play timed moves.
+   */
+  public Match(Weights weights, Searcher.Options options, int monteCarloPlayer) {
+    this(weights, options, weights, options);
+    if (monteCarloPlayer == PLAYER_1) {
+      m1 = new MonteCarloSearcher(g1);
+    } else {
+      m2 = new MonteCarloSearcher(g2);
+    }
+  }
+
+  /**
+   * Sets the proof store of both alpha-beta players, e.g. one shared by all matches of a run.
+   */
+  public void setProofStore(ProofStore proofStore) {
+    p1.setProofStore(proofStore);
+    p2.setProofStore(proofStore);
   }
 
   public boolean manualMove(int move) {
@@ -21,6 +50,9 @@ public class Match {
   }
 
   public boolean botMove(int searchDepth) {
+    if (m1 != null || m2 != null)
+      throw new IllegalStateException("Monte Carlo players only play timed moves");
+
     int move;
     if (g1.getCurrentPlayer() == PLAYER_1) {
       move = p1.search(searchDepth + 1).getPVMove();
@@ -30,10 +62,43 @@ public class Match {
     return manualMove(move);
   }
 
+  /**
+   * Plays the current player's move from an iterative deepening search of at most the given time,
+   * so that searchers of different speeds can be compared.
+   */
+  public boolean timedBotMove(int moveTime) {
+    long timeStart = System.nanoTime();
+    MonteCarloSearcher monteCarloSearcher = (g1.getCurrentPlayer() == PLAYER_1) ? m1 : m2;
+    if (monteCarloSearcher != null) {
+      monteCarloSearcher.setDeadline(timeStart + TimeUnit.MILLISECONDS.toNanos(moveTime));
+      int move = monteCarloSearcher.search().getMove();
+      return manualMove(move != -1 ? move : g1.generateRandomMove());
+    }
+
+    Searcher searcher = (g1.getCurrentPlayer() == PLAYER_1) ? p1 : p2;
+    searcher.setDeadlines(
+        timeStart + TimeUnit.MILLISECONDS.toNanos(moveTime / 2),
+        timeStart + TimeUnit.MILLISECONDS.toNanos(moveTime));
+    Searcher.Result result = searcher.searchIteratively(MAX_MOVES, null);
+    int move = (result != null) ? result.getPVMove() : -1;
+    return manualMove(move != -1 ? move : g1.generateRandomMove());
+  }
+
   public int play(int searchDepth) {
     while (!g1.isFinished()) {
       botMove(searchDepth);
     }
+    return getResult();
+  }
+
+  public int playTimed(int moveTime) {
+    while (!g1.isFinished()) {
+      timedBotMove(moveTime);
+    }
+    return getResult();
+  }
+
+  private int getResult() {
     if (!g1.hasWinner()) {
       return 0;
     }
@@ -0,0 +1,478 @@
+package bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import static bot.Util.*;
+
+/**
+ * Monte Carlo tree search with UCT selection and random playouts. Nodes whose result follows
+ * from their children are proven (MCTS-Solver) and then backed up exactly instead of averaged.
+ * Several threads may grow the same tree, with virtual losses steering them apart, and the
+ * subtree of the moves played since the last search is kept for the next one.
+ *
+ * @author Vance Zuo
+ */
+public class MonteCarloSearcher {
+  public class Result {
+    private final int move;
+    private final List<Integer> pv;
+    private final double value;
+    private final int visits;
+    private final int provenResult;
+
+    public Result(int move, List<Integer> pv, double value, int visits, int provenResult) {
+      this.move = move;
+      this.pv = pv;
+      this.value = value;
+      this.visits = visits;
+      this.provenResult = provenResult;
+    }
+
+    public int getMove() {
+      return move;
+    }
+
+    public List<Integer> getPV() {
+      return pv;
+    }
+
+    /**
+     * Returns the mean playout result of the move for the player to move, from 0 (loss) to 1 (win).
+     */
+    public double getValue() {
+      return value;
+    }
+
+    public int getVisits() {
+      return visits;
+    }
+
+    /**
+     * Returns {@link #WIN}, {@link #DRAW} or {@link #LOSS} for the player to move if proven,
+     * otherwise {@link #UNKNOWN}.
+     */
+    public int getProvenResult() {
+      return provenResult;
+    }
+
+    public boolean isProvenResult() {
+      return provenResult != UNKNOWN;
+    }
+  }
+
+  private static class Node {
+    private static final AtomicIntegerFieldUpdater<Node> VISITS =
+        AtomicIntegerFieldUpdater.newUpdater(Node.class, "visits");
+    private static final AtomicIntegerFieldUpdater<Node> SCORE =
+        AtomicIntegerFieldUpdater.newUpdater(Node.class, "score");
+
+    private final int move; // -1 for a new root
+
+    // Null until expanded, then one child per legal move
+    private volatile Node[] children;
+
+    // Playouts through this node, including virtual losses of unfinished ones, and their total
+    // score in half points for the player who moved here
+    private volatile int visits;
+    private volatile int score;
+
+    // For the player who moved here
+    private volatile int result = UNKNOWN;
+
+    private Node(int move) {
+      this.move = move;
+    }
+  }
+
+  /**
+   * Per-thread search state; the tree is the only thing threads share.
+   */
+  private class Worker {
+    private final Game game;
+    private final Node[] path;
+    private final int[] moves;
+    private final Playout playout;
+    private final SplitMixRandom random;
+    private long playouts;
+
+    private Worker(long seed) {
+      game = new Game(masterGame);
+      path = new Node[MAX_MOVES + 1];
+      moves = new int[MAX_MOVES];
+      playout = new Playout(seed);
+      random = playout.getRandom();
+    }
+
+    private void run() {
+      while (!isStopDue()) {
+        iterate();
+        playouts++;
+      }
+    }
+
+    private void iterate() {
+      Node node = root;
+      path[0] = node;
+      int depth = 0;
+      int reward;
+      while (true) {
+        if (node.result != UNKNOWN) {
+          reward = node.result + 1;
+          break;
+        }
+        Node[] children = node.children;
+        if (children == null) {
+          if (node.visits < EXPANSION_VISITS || (children = expand(node)) == null) {
+            reward = playout(depth);
+            break;
+          }
+        }
+        node = select(node, children);
+        Node.VISITS.addAndGet(node, VIRTUAL_LOSS);
+        game.unsafeDoMove(node.move);
+        path[++depth] = node;
+        if (node.result == UNKNOWN && game.isFinished()) {
+          node.result = game.hasWinner() ? WIN : DRAW;
+        }
+      }
+
+      boolean proving = path[depth].result != UNKNOWN;
+      for (int i = depth; i >= 0; i--) {
+        Node pathNode = path[i];
+        Node.SCORE.addAndGet(pathNode, reward);
+        Node.VISITS.addAndGet(pathNode, (i > 0) ? 1 - VIRTUAL_LOSS : 1);
+        if (proving && i < depth) {
+          proving = updateProof(pathNode);
+        }
+        reward = 2 - reward;
+        if (i > 0) {
+          game.unsafeUndoMove();
+        }
+      }
+    }
+
+    /**
+     * Plays a random game from the current position, and returns the score in half points for the
+     * player who moved into the node at the given depth.
+     */
+    private int playout(int depth) {
+      int mover = (depth % 2 == 0) ? rootMover : swapPlayer(rootMover);
+      int winner = playout.play(game);
+      return (winner == PLAYER_NONE) ? 1 : (winner == mover) ? 2 : 0;
+    }
+
+    private Node[] expand(Node node) {
+      synchronized (node) {
+        if (node.children != null) {
+          return node.children;
+        }
+        int numMoves = game.unsafeGenerateMoves(moves);
+        if (treeSize.addAndGet(numMoves) > maxTreeSize) {
+          treeSize.addAndGet(-numMoves);
+          return null;
+        }
+        Node[] children = new Node[numMoves];
+        // Start at a random move, so that the order of unvisited moves doesn't bias the tree
+        int offset = random.nextInt(numMoves);
+        for (int i = 0; i < numMoves; i++) {
+          children[i] = new Node(moves[(i + offset) % numMoves]);
+        }
+        node.children = children;
+        return children;
+      }
+    }
+  }
+
+  // Proven results, for the player who moved into a node
+  public static final int LOSS = -1, DRAW = 0, WIN = 1;
+  public static final int UNKNOWN = Integer.MIN_VALUE;
+
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  public static final int DEFAULT_MAX_TREE_SIZE = 1 << 22;
+
+  private static final double EXPLORATION = 1.0;
+  // Visits a leaf gets before its children are added, so most playouts don't allocate
+  private static final int EXPANSION_VISITS = 2;
+  // Playouts an unfinished iteration counts as lost for the player moving into each of its nodes
+  private static final int VIRTUAL_LOSS = 1;
+
+  private final Game masterGame;
+  private final int maxTreeSize;
+  private final AtomicInteger treeSize;
+
+  // Root of the last search, and the moves that led to it
+  private Node root;
+  private int[] rootHistory;
+  private int rootMover;
+
+  private volatile boolean stopRequested;
+  private volatile long hardDeadline;
+
+  private final List<Worker> workers;
+  private long seed;
+
+  public MonteCarloSearcher(Game game) {
+    this(game, DEFAULT_MAX_TREE_SIZE);
+  }
+
+  /**
+   * Creates a searcher of the given game that stops adding nodes to a search's tree once it has
+   * about the given number.
+   */
+  public MonteCarloSearcher(Game game, int maxTreeSize) {
+    this.masterGame = game;
+    this.maxTreeSize = maxTreeSize;
+    this.treeSize = new AtomicInteger();
+    this.hardDeadline = NO_DEADLINE;
+    this.workers = new ArrayList<>();
+    this.rootHistory = new int[0];
+  }
+
+  public Game getGame() {
+    return masterGame;
+  }
+
+  /**
+   * Returns the number of playouts of the current or last search.
+   */
+  public long getPlayouts() {
+    long playouts = 0;
+    for (Worker worker : workers) {
+      playouts += worker.playouts;
+    }
+    return playouts;
+  }
+
+  public int getTreeSize() {
+    return treeSize.get();
+  }
+
+  /**
+   * Sets the deadline (as a {@link System#nanoTime()} value, or {@link #NO_DEADLINE}) for the next
+   * or current search, and clears any stop request.
+   */
+  public void setDeadline(long hardDeadline) {
+    this.hardDeadline = hardDeadline;
+    this.stopRequested = false;
+  }
+
+  /**
+   * Asks the running search to stop soon. Stays in effect until {@link #setDeadline} is called.
+   */
+  public void stop() {
+    stopRequested = true;
+  }
+
+  /**
+   * Searches in the calling thread until the deadline, a stop request, or the result is proven.
+   */
+  public Result search() {
+    prepareSearch(1);
+    workers.get(0).run();
+    return getResult();
+  }
+
+  /**
+   * Like {@link #search()}, but grows the tree with the given number of threads: the calling one
+   * and the rest from the given executor, which must have that many free.
+   */
+  public Result search(ExecutorService executor, int threads) {
+    prepareSearch(threads);
+    List<Future<?>> helperFutures = new ArrayList<>();
+    for (int i = 1; i < threads; i++) {
+      helperFutures.add(executor.submit(workers.get(i)::run));
+    }
+    try {
+      workers.get(0).run();
+    } finally {
+      // Helpers stop on their own unless the calling thread failed
+      stop();
+      for (Future<?> helperFuture : helperFutures) {
+        try {
+          helperFuture.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    return getResult();
+  }
+
+  /**
+   * Returns the most visited move of the current tree that is not a proven loss, or a proven win
+   * if there is one. May be called while searching.
+   */
+  public Result getResult() {
+    Node[] children = root.children;
+    if (children == null) {
+      return new Result(-1, new ArrayList<>(), 0.5, 0, UNKNOWN);
+    }
+    Node best = null;
+    for (Node child : children) {
+      if (best == null || compareMoves(child, best) > 0) {
+        best = child;
+      }
+    }
+    List<Integer> pv = new ArrayList<>();
+    for (Node node = best; node != null; node = getMostVisitedChild(node)) {
+      pv.add(node.move);
+    }
+    int visits = best.visits;
+    double value = (best.result != UNKNOWN) ? (best.result + 1) / 2.0
+        : (visits > 0) ? best.score / (2.0 * visits) : 0.5;
+    return new Result(best.move, pv, value, visits, best.result);
+  }
+
+  private int compareMoves(Node a, Node b) {
+    int rankA = (a.result == UNKNOWN) ? DRAW : a.result;
+    int rankB = (b.result == UNKNOWN) ? DRAW : b.result;
+    if (rankA != rankB) {
+      // Proven wins first and proven losses last; unproven moves rank with draws
+      return Integer.compare(rankA, rankB);
+    }
+    return Integer.compare(a.visits, b.visits);
+  }
+
+  private Node getMostVisitedChild(Node node) {
+    Node[] children = node.children;
+    if (children == null) {
+      return null;
+    }
+    Node best = null;
+    for (Node child : children) {
+      if (child.visits > 0 && (best == null || child.visits > best.visits)) {
+        best = child;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Moves the root to the current position, keeping the subtree if the game went through the last
+   * root, and creates the workers.
+   */
+  private void prepareSearch(int threads) {
+    HistoryStack history = masterGame.getHistory();
+    int moveNumber = masterGame.getMoveNumber();
+    Node newRoot = null;
+    if (root != null && moveNumber >= rootHistory.length) {
+      newRoot = root;
+      for (int i = 0; i < rootHistory.length; i++) {
+        if (history.getMove(i) != rootHistory[i]) {
+          newRoot = null;
+          break;
+        }
+      }
+      for (int i = rootHistory.length; i < moveNumber && newRoot != null; i++) {
+        newRoot = findChild(newRoot, history.getMove(i));
+      }
+    }
+    if (newRoot == null) {
+      newRoot = new Node(-1);
+      if (masterGame.isFinished()) {
+        newRoot.result = masterGame.hasWinner() ? WIN : DRAW;
+      }
+    }
+    root = newRoot;
+    rootHistory = new int[moveNumber];
+    for (int i = 0; i < moveNumber; i++) {
+      rootHistory[i] = history.getMove(i);
+    }
+    rootMover = swapPlayer(masterGame.getCurrentPlayer());
+    // Nodes kept from the last search don't count towards this one's limit
+    treeSize.set(0);
+
+    workers.clear();
+    for (int i = 0; i < threads; i++) {
+      workers.add(new Worker(seed++));
+    }
+  }
+
+  private Node findChild(Node node, int move) {
+    Node[] children = node.children;
+    if (children == null) {
+      return null;
+    }
+    for (Node child : children) {
+      if (child.move == move) {
+        return child;
+      }
+    }
+    return null;
+  }
+
+  private boolean isStopDue() {
+    return stopRequested || root.result != UNKNOWN || System.nanoTime() >= hardDeadline;
+  }
+
+  /**
+   * Picks the child to search by UCT, counting proven children at their exact value and never
+   * picking a proven loss while there are other moves.
+   */
+  private static Node select(Node node, Node[] children) {
+    double logVisits = Math.log(Math.max(1, node.visits));
+    Node best = children[0];
+    double bestValue = Double.NEGATIVE_INFINITY;
+    for (Node child : children) {
+      int visits = child.visits;
+      int result = child.result;
+      if (visits == 0 && result == UNKNOWN) {
+        return child;
+      }
+      double value;
+      if (result == WIN) {
+        return child;
+      } else if (result == LOSS) {
+        continue;
+      } else if (result == DRAW) {
+        value = 0.5;
+      } else {
+        value = child.score / (2.0 * visits);
+      }
+      value += EXPLORATION * Math.sqrt(logVisits / Math.max(1, visits));
+      if (value > bestValue) {
+        bestValue = value;
+        best = child;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Proves the node from its children if possible: a loss for its mover if the opponent has a
+   * winning move, otherwise the best result for its mover once every move is proven. Returns
+   * whether the node is proven.
+   */
+  private static boolean updateProof(Node node) {
+    if (node.result != UNKNOWN) {
+      return true;
+    }
+    int best = LOSS;
+    boolean allProven = true;
+    for (Node child : node.children) {
+      int result = child.result;
+      if (result == WIN) {
+        node.result = LOSS;
+        return true;
+      }
+      if (result == UNKNOWN) {
+        allProven = false;
+      } else {
+        best = Math.max(best, result);
+      }
+    }
+    if (allProven) {
+      node.result = -best;
+    }
+    return allProven;
+  }
+}
@@ -0,0 +1,100 @@
+package bot;
+
+import static bot.Util.*;
+
+/**
+ * Plays uniformly random games to the end on a compact copy of a position's bitboards, without
+ * touching the game or allocating.
+ *
+ * @author Vance Zuo
+ */
+public class Playout {
+  private final SplitMixRandom random;
+
+  private final int[][] microboards; // [PLAYER_NONE (unused), PLAYER_1, PLAYER_2][macro index]
+  private final int[] macroboards; // [PLAYER_NONE (unused), PLAYER_1, PLAYER_2]
+
+  public Playout(SplitMixRandom random) {
+    this.random = random;
+    microboards = new int[NUM_PLAYERS + 1][MACROBOARD_SIZE];
+    macroboards = new int[NUM_PLAYERS + 1];
+  }
+
+  public Playout(long seed) {
+    this(new SplitMixRandom(seed));
+  }
+
+  public SplitMixRandom getRandom() {
+    return random;
+  }
+
+  /**
+   * Plays a random game from the given position, and returns the winner, or
+   * {@link Util#PLAYER_NONE} for a draw.
+   */
+  public int play(Game game) {
+    if (game.hasWinner()) {
+      return game.getWinner();
+    }
+    int fullMacroboard = game.getFullMacroboardMask();
+    for (int player = PLAYER_1; player <= NUM_PLAYERS; player++) {
+      macroboards[player] = game.getMacroboardMask(player);
+      for (int macroInd = 0; macroInd < MACROBOARD_SIZE; macroInd++) {
+        microboards[player][macroInd] = game.getMicroboardMask(player, macroInd);
+      }
+    }
+    int[] micro1 = microboards[PLAYER_1], micro2 = microboards[PLAYER_2];
+    int nextMacroInd = game.getNextMacroIndex();
+    int player = game.getCurrentPlayer();
+
+    while (true) {
+      int wonMacroboard = macroboards[PLAYER_1] | macroboards[PLAYER_2];
+      int openMacroboard = FULL_MASK & ~(wonMacroboard | fullMacroboard);
+      int macroInd, mask, n;
+      if (nextMacroInd != ANY_MACRO_INDEX) {
+        if ((openMacroboard & (1 << nextMacroInd)) == 0) {
+          return PLAYER_NONE; // sent to a full microboard
+        }
+        macroInd = nextMacroInd;
+        mask = FULL_MASK & ~(micro1[macroInd] | micro2[macroInd]);
+        n = random.nextInt(Integer.bitCount(mask));
+      } else {
+        if (openMacroboard == EMPTY_MASK) {
+          return PLAYER_NONE;
+        }
+        // Pick among the empty cells of all open microboards, then find the cell's microboard
+        int numMoves = 0;
+        for (int open = openMacroboard; open != 0; open &= open - 1) {
+          int i = Integer.numberOfTrailingZeros(open);
+          numMoves += MICROBOARD_SIZE - Integer.bitCount(micro1[i] | micro2[i]);
+        }
+        n = random.nextInt(numMoves);
+        int open = openMacroboard;
+        while (true) {
+          macroInd = Integer.numberOfTrailingZeros(open);
+          mask = FULL_MASK & ~(micro1[macroInd] | micro2[macroInd]);
+          int count = Integer.bitCount(mask);
+          if (n < count) {
+            break;
+          }
+          n -= count;
+          open &= open - 1;
+        }
+      }
+
+      int microInd = nthSetBit(mask, n);
+      int microboard = microboards[player][macroInd] |= 1 << microInd;
+      if (isWin(microboard)) {
+        if (isWin(macroboards[player] |= 1 << macroInd)) {
+          return player;
+        }
+      }
+      if ((micro1[macroInd] | micro2[macroInd]) == FULL_MASK) {
+        fullMacroboard |= 1 << macroInd;
+      }
+      wonMacroboard = macroboards[PLAYER_1] | macroboards[PLAYER_2];
+      nextMacroInd = ((wonMacroboard & (1 << microInd)) != 0) ? ANY_MACRO_INDEX : microInd;
+      player = swapPlayer(player);
+    }
+  }
+}
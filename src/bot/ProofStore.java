@@ -0,0 +1,217 @@
+package bot;
+
+import bot.TranspositionTable.Entry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+
+import static bot.TranspositionTable.Entry.Type.PV_NODE;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Table of proven positions in a memory-mapped file, so that proofs outlive the transposition
+ * table and the process, and can be shared by searchers in other threads and processes. Entries
+ * are stored as in {@link TranspositionTable}, as their key XOR their data and then their data, in
+ * buckets of 4. A write torn by a concurrent writer or by a crash fails key verification, so it
+ * reads as missing instead of as a wrong result.
+ * <p>
+ * Entries use the packed format of {@link Entry}, with the type telling whether the score is
+ * exact or a bound. Only the type, move, score and move number are kept.
+ *
+ * @author Vance Zuo
+ */
+public class ProofStore implements Closeable {
+  public static final int DEFAULT_MEGABYTES = 64;
+
+  private static final long MAGIC = 0x5554545450524F46L; // "UTTTPROF"
+  private static final int VERSION = 1;
+
+  // Header layout: magic, version, log size, key fingerprint; padded to keep buckets aligned
+  private static final int MAGIC_OFFSET = 0, VERSION_OFFSET = 8, LOG_SIZE_OFFSET = 12,
+      FINGERPRINT_OFFSET = 16, HEADER_BYTES = 64;
+
+  private static final int ENTRY_BYTES = 2 * Long.BYTES;
+  private static final int LOG_BUCKET_SIZE = 2, BUCKET_SIZE = 1 << LOG_BUCKET_SIZE;
+  // Keep the whole file in one mapping, which is limited to 2 GB
+  private static final int MAX_LOG_SIZE = 26;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int bucketMask;
+
+  private ProofStore(FileChannel channel, MappedByteBuffer buffer, int logSize) {
+    this.channel = channel;
+    this.buffer = buffer;
+    this.bucketMask = (1 << (logSize - LOG_BUCKET_SIZE)) - 1;
+  }
+
+  /**
+   * Opens the store in the given file, creating it with the most entries (a power of 2) that fit
+   * in the given number of megabytes if it doesn't hold a store yet (or only one whose creation
+   * was cut short). An existing store keeps its size.
+   *
+   * @throws IOException if the file can't be mapped, or holds something other than a store of
+   *     this version and these Zobrist keys
+   */
+  public static ProofStore open(Path path, int megabytes) throws IOException {
+    FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE);
+    try {
+      // Other processes may be opening the same file
+      FileLock lock = channel.lock();
+      try {
+        // The magic is written last, so a file without it is new or holds a store whose creation
+        // was cut short, possibly at another size
+        if (readMagic(channel) == 0) {
+          channel.truncate(0);
+          initialize(channel, logSizeForMegabytes(megabytes));
+        }
+        if (channel.size() < HEADER_BYTES) {
+          throw new IOException("Not a proof store: " + path);
+        }
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if (header.getLong(MAGIC_OFFSET) != MAGIC) {
+          throw new IOException("Not a proof store: " + path);
+        }
+        if (header.getInt(VERSION_OFFSET) != VERSION) {
+          throw new IOException("Unsupported proof store version: " + path);
+        }
+        if (header.getLong(FINGERPRINT_OFFSET) != getKeyFingerprint()) {
+          throw new IOException("Proof store of different Zobrist keys: " + path);
+        }
+        int logSize = header.getInt(LOG_SIZE_OFFSET);
+        if (logSize < LOG_BUCKET_SIZE || logSize > MAX_LOG_SIZE
+            || channel.size() < fileBytes(logSize)) {
+          throw new IOException("Corrupt proof store header: " + path);
+        }
+        MappedByteBuffer buffer =
+            channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes(logSize));
+        return new ProofStore(channel, buffer, logSize);
+      } finally {
+        lock.release();
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the magic of the file, reading missing bytes of a short file as 0.
+   */
+  private static long readMagic(FileChannel channel) throws IOException {
+    ByteBuffer magic = ByteBuffer.allocate(Long.BYTES);
+    while (magic.hasRemaining()) {
+      if (channel.read(magic, magic.position()) <= 0) {
+        break; // end of a short file
+      }
+    }
+    return magic.getLong(MAGIC_OFFSET);
+  }
+
+  private static void initialize(FileChannel channel, int logSize) throws IOException {
+    // Mapping past the end extends the file with zeros, i.e. empty entries
+    channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes(logSize)).force();
+    MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+    header.putInt(VERSION_OFFSET, VERSION);
+    header.putInt(LOG_SIZE_OFFSET, logSize);
+    header.putLong(FINGERPRINT_OFFSET, getKeyFingerprint());
+    header.force();
+    header.putLong(MAGIC_OFFSET, MAGIC);
+    header.force();
+  }
+
+  private static int logSizeForMegabytes(int megabytes) {
+    long entries = Math.max(BUCKET_SIZE, ((long) megabytes << 20) / ENTRY_BYTES);
+    return Math.min(63 - Long.numberOfLeadingZeros(entries), MAX_LOG_SIZE);
+  }
+
+  private static long fileBytes(int logSize) {
+    return HEADER_BYTES + ((long) ENTRY_BYTES << logSize);
+  }
+
+  /**
+   * Returns the key of the start position, which differs between builds of different Zobrist keys.
+   */
+  private static long getKeyFingerprint() {
+    return new ZobristKey(new Game()).getKey();
+  }
+
+  public int size() {
+    return (bucketMask + 1) * BUCKET_SIZE;
+  }
+
+  /**
+   * Returns the packed data stored for the given key, or {@link TranspositionTable#MISSING}.
+   */
+  public long get(long key) {
+    int bucket = keyToOffset(key);
+    for (int i = bucket; i < bucket + BUCKET_SIZE * ENTRY_BYTES; i += ENTRY_BYTES) {
+      long entry = buffer.getLong(i + Long.BYTES);
+      if ((buffer.getLong(i) ^ entry) == key && entry != TranspositionTable.MISSING) {
+        return entry;
+      }
+    }
+    return TranspositionTable.MISSING;
+  }
+
+  /**
+   * Stores a proven result. An exact result isn't replaced by a bound, and once the bucket is full,
+   * results of positions later in the game are dropped before those of earlier ones.
+   */
+  public boolean insert(long key, byte type, int move, int score, int moveNum) {
+    int bucket = keyToOffset(key);
+    int offset = -1;
+    int maxMoveNum = moveNum;
+    for (int i = bucket; i < bucket + BUCKET_SIZE * ENTRY_BYTES; i += ENTRY_BYTES) {
+      long entry = buffer.getLong(i + Long.BYTES);
+      if (Entry.type(entry) == Entry.Type.EMPTY || (buffer.getLong(i) ^ entry) == key) {
+        if (Entry.type(entry) == PV_NODE && type != PV_NODE) {
+          return false;
+        }
+        offset = i;
+        break;
+      }
+      if (Entry.moveNum(entry) > maxMoveNum) {
+        offset = i;
+        maxMoveNum = Entry.moveNum(entry);
+      }
+    }
+    if (offset == -1) {
+      return false;
+    }
+
+    long newEntry = Entry.pack(type, 0, move, score, true, moveNum, 0);
+    buffer.putLong(offset, key ^ newEntry);
+    buffer.putLong(offset + Long.BYTES, newEntry);
+    return true;
+  }
+
+  /**
+   * Writes the entries to disk. Not needed for other processes to see them, or for them to
+   * survive the process, only for them to survive the system.
+   */
+  public void force() {
+    buffer.force();
+  }
+
+  /**
+   * Writes the entries to disk and closes the file. The store must not be used afterwards.
+   */
+  @Override
+  public void close() throws IOException {
+    force();
+    channel.close();
+  }
+
+  /**
+   * Returns the byte offset of the key's bucket.
+   */
+  private int keyToOffset(long key) {
+    return HEADER_BYTES + (((int) key & bucketMask) << LOG_BUCKET_SIZE) * ENTRY_BYTES;
+  }
+}
@@ -0,0 +1,84 @@
+package bot;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events of the bot. They are only filled in when a recording wants them, so
+ * they cost next to nothing otherwise, and they skip stack traces since they always come from the
+ * same places. They make the bot require Java 11 or later with the jdk.jfr module.
+ *
+ * @author Vance Zuo
+ */
+public class SearchEvents {
+  @Name("bot.SearchIteration")
+  @Label("Search Iteration")
+  @StackTrace(false)
+  @Category({"Bot", "Search"})
+  @Description("Completed iteration of an iterative deepening search")
+  public static class IterationEvent extends Event {
+    @Label("Depth")
+    public int depth;
+
+    @Label("Nodes")
+    @Description("Nodes of the iteration")
+    public long nodes;
+
+    @Label("Score")
+    public int score;
+
+    @Label("Proven")
+    public boolean proven;
+  }
+
+  @Name("bot.Think")
+  @Label("Think")
+  @StackTrace(false)
+  @Category({"Bot", "Search"})
+  @Description("Search for the bot's move")
+  public static class ThinkEvent extends Event {
+    @Label("Budget")
+    @Timespan(Timespan.MILLISECONDS)
+    public long budget;
+
+    @Label("Depth")
+    @Description("Depth of the last completed iteration, or 0 for Monte Carlo")
+    public int depth;
+
+    @Label("Nodes")
+    @Description("Nodes, or playouts for Monte Carlo, of all search threads")
+    public long nodes;
+
+    @Label("Move")
+    public int move;
+
+    @Label("Stop Reason")
+    public String stopReason;
+
+    @Label("Pondered")
+    @Description("Whether the search went on from pondering")
+    public boolean pondered;
+  }
+
+  @Name("bot.TranspositionTable")
+  @Label("Transposition Table")
+  @StackTrace(false)
+  @Category({"Bot", "Search"})
+  @Description("Snapshot of transposition table occupancy")
+  @Period("1 s")
+  public static class TableEvent extends Event {
+    @Label("Size")
+    @Description("Number of entries")
+    public int size;
+
+    @Label("Load")
+    @Description("Estimated fraction of entries in use")
+    @Percentage
+    public double load;
+
+    @Label("Gets")
+    public long gets;
+
+    @Label("Hits")
+    public long hits;
+  }
+}
@@ -0,0 +1,141 @@
+package bot;
+
+import java.util.Arrays;
+
+import static bot.TranspositionTable.Entry.Type.NAMES;
+import static bot.Util.MAX_MOVES;
+
+/**
+ * Counters of one {@link Searcher} search, over all its iterations so far. Table hits are indexed
+ * by entry type.
+ *
+ * @author Vance Zuo
+ */
+public class SearchStats {
+  public long mainNodes, quiescenceNodes, solverNodes;
+  public long cutoffs, firstMoveCutoffs;
+
+  // Probes from the main search, and the hits by entry type that ended the node, that were too
+  // shallow, or whose bound didn't cut off (the rest)
+  public long tableProbes;
+  public final long[] tableHits, usableTableHits, shallowTableHits;
+
+  // Zero-window searches that failed high and were repeated with a full window, reduced searches
+  // repeated at full depth, and root searches repeated after failing outside the aspiration window
+  public long pvsResearches, reductionResearches, aspirationResearches;
+
+  // Probes of the proof store, and the hits that ended the node
+  public long proofStoreProbes, proofStoreHits;
+
+  // Nodes of each iteration, by depth, and the depth of the last completed one
+  private final long[] iterationNodes;
+  private int depth;
+
+  public SearchStats() {
+    tableHits = new long[NAMES.length];
+    usableTableHits = new long[NAMES.length];
+    shallowTableHits = new long[NAMES.length];
+    iterationNodes = new long[MAX_MOVES + 1];
+  }
+
+  public SearchStats(SearchStats stats) {
+    mainNodes = stats.mainNodes;
+    quiescenceNodes = stats.quiescenceNodes;
+    solverNodes = stats.solverNodes;
+    cutoffs = stats.cutoffs;
+    firstMoveCutoffs = stats.firstMoveCutoffs;
+    tableProbes = stats.tableProbes;
+    tableHits = Arrays.copyOf(stats.tableHits, stats.tableHits.length);
+    usableTableHits = Arrays.copyOf(stats.usableTableHits, stats.usableTableHits.length);
+    shallowTableHits = Arrays.copyOf(stats.shallowTableHits, stats.shallowTableHits.length);
+    pvsResearches = stats.pvsResearches;
+    reductionResearches = stats.reductionResearches;
+    aspirationResearches = stats.aspirationResearches;
+    proofStoreProbes = stats.proofStoreProbes;
+    proofStoreHits = stats.proofStoreHits;
+    iterationNodes = Arrays.copyOf(stats.iterationNodes, stats.iterationNodes.length);
+    depth = stats.depth;
+  }
+
+  public long getNodes() {
+    return mainNodes + quiescenceNodes + solverNodes;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public long getIterationNodes(int depth) {
+    return iterationNodes[depth];
+  }
+
+  /**
+   * Returns the ratio of the nodes of the iteration at the given depth to those of the one before,
+   * or NaN if either wasn't searched.
+   */
+  public double getEffectiveBranchingFactor(int depth) {
+    if (depth < 2 || iterationNodes[depth] == 0 || iterationNodes[depth - 1] == 0) {
+      return Double.NaN;
+    }
+    return (double) iterationNodes[depth] / iterationNodes[depth - 1];
+  }
+
+  public double getEffectiveBranchingFactor() {
+    return getEffectiveBranchingFactor(depth);
+  }
+
+  public double getFirstMoveCutoffRate() {
+    return (double) firstMoveCutoffs / cutoffs;
+  }
+
+  public long getTableHits() {
+    return sum(tableHits);
+  }
+
+  public long getUsableTableHits() {
+    return sum(usableTableHits);
+  }
+
+  public long getShallowTableHits() {
+    return sum(shallowTableHits);
+  }
+
+  /**
+   * Records that a root search at the given depth completed, having started when the search had
+   * the given number of nodes. Multi-PV iterations add up several.
+   */
+  void endIteration(int depth, long startNodes) {
+    iterationNodes[depth] += getNodes() - startNodes;
+    this.depth = depth;
+  }
+
+  private static long sum(long[] counts) {
+    long sum = 0;
+    for (long count : counts) {
+      sum += count;
+    }
+    return sum;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "SearchStats(%s=%s, %s=%s, %s=%s, %s=%s, %s=%.2f, %s=%.3f, %s=%s, %s=%s, %s=%s, %s=%s, "
+            + "%s=%s, %s=%s, %s=%s, %s=%s, %s=%s)",
+        "depth", depth,
+        "mainNodes", mainNodes,
+        "quiescenceNodes", quiescenceNodes,
+        "solverNodes", solverNodes,
+        "effectiveBranchingFactor", getEffectiveBranchingFactor(),
+        "firstMoveCutoffRate", getFirstMoveCutoffRate(),
+        "tableProbes", tableProbes,
+        "tableHits", Arrays.toString(tableHits),
+        "usableTableHits", Arrays.toString(usableTableHits),
+        "shallowTableHits", Arrays.toString(shallowTableHits),
+        "pvsResearches", pvsResearches,
+        "reductionResearches", reductionResearches,
+        "aspirationResearches", aspirationResearches,
+        "proofStoreProbes", proofStoreProbes,
+        "proofStoreHits", proofStoreHits);
+  }
+}
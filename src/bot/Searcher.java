@@ -1,10 +1,13 @@
 package bot;
 
+import bot.SearchEvents.IterationEvent;
+import bot.TranspositionTable.Entry;
+
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.function.BooleanSupplier;
 
 import static bot.EvaluatedGame.*;
 import static bot.TranspositionTable.Entry.Type.*;
@@ -16,16 +19,51 @@ import static bot.Util.*;
 public class Searcher {
   public static class Task implements Callable<Result> {
     private final Searcher searcher;
-    private final int depth;
+    private final int maxDepth;
+    private final IterationListener listener;
 
-    public Task(Searcher search, int depth) {
+    public Task(Searcher search, int maxDepth, IterationListener listener) {
       this.searcher = search;
-      this.depth = depth;
+      this.maxDepth = maxDepth;
+      this.listener = listener;
     }
 
     @Override
     public Result call() throws Exception {
-      return searcher.search(depth);
+      return searcher.searchIteratively(maxDepth, listener);
+    }
+  }
+
+  public interface IterationListener {
+    /**
+     * Called from the search thread after each completed iteration.
+     */
+    void onIteration(int depth, Result result);
+  }
+
+  public interface MultiPvListener {
+    /**
+     * Called from the search thread after each completed iteration of a multi-PV search.
+     */
+    void onIteration(int depth, List<Result> results);
+  }
+
+  /**
+   * Lazy SMP helper: searches ever deeper until stopped, only to fill the shared transposition
+   * table for the main searcher.
+   */
+  public static class HelperTask implements Runnable {
+    private final Searcher searcher;
+    private final int depthOffset;
+
+    public HelperTask(Searcher searcher, int depthOffset) {
+      this.searcher = searcher;
+      this.depthOffset = depthOffset;
+    }
+
+    @Override
+    public void run() {
+      searcher.searchIteratively(1 + depthOffset, MAX_MOVES, null);
     }
   }
 
@@ -33,11 +71,13 @@ public class Searcher {
     private final int score;
     private final List<Integer> pv;
     private final boolean proof;
+    private final SearchStats stats;
 
-    public Result(int score, List<Integer> pv, boolean proof) {
+    public Result(int score, List<Integer> pv, boolean proof, SearchStats stats) {
       this.score = score;
       this.pv = pv;
       this.proof = proof;
+      this.stats = stats;
     }
 
     public int getScore() {
@@ -53,15 +93,52 @@ public class Searcher {
     }
 
     public int getPVMove() {
-      return pv.get(0);
+      return pv.isEmpty() ? -1 : pv.get(0);
     }
 
     public boolean isProvenResult() {
       return proof;
     }
+
+    /**
+     * Returns the stats of the search as of the end of this result's iteration.
+     */
+    public SearchStats getStats() {
+      return stats;
+    }
+  }
+
+  /**
+   * Optional search features.
+   */
+  public static class Options {
+    // Reduce late quiet moves by a ply, re-searching at full depth if they fail high
+    public final boolean lateMoveReductions;
+    // Prune nodes where passing still fails high, once a reduced search without passing agrees
+    public final boolean nullMovePruning;
+    // Solve positions with at most this many playable cells exactly, or 0 to never
+    public final int endgameSolverCells;
+
+    public Options(boolean lateMoveReductions, boolean nullMovePruning, int endgameSolverCells) {
+      this.lateMoveReductions = lateMoveReductions;
+      this.nullMovePruning = nullMovePruning;
+      this.endgameSolverCells = endgameSolverCells;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "Searcher.Options(%s=%s, %s=%s, %s=%s)",
+          "lateMoveReductions", lateMoveReductions,
+          "nullMovePruning", nullMovePruning,
+          "endgameSolverCells", endgameSolverCells);
+    }
   }
 
-  public class PrincipalVariation {
+  /**
+   * One row of the triangular PV table: the PV found from some ply.
+   */
+  private static class PrincipalVariation {
     private int[] pv;
     private int size;
 
@@ -78,42 +155,231 @@ public class Searcher {
       return size;
     }
 
+    public void clear() {
+      size = 0;
+    }
+
     public void add(int move) {
       pv[size++] = move;
     }
+
+    public void set(int move, PrincipalVariation childPv) {
+      pv[0] = move;
+      System.arraycopy(childPv.pv, 0, pv, 1, childPv.size);
+      size = childPv.size + 1;
+    }
+
+    public List<Integer> toList() {
+      List<Integer> list = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        list.add(pv[i]);
+      }
+      return list;
+    }
   }
 
-  private static class WeightedMove {
-    Integer move;
-    int score;
+  /**
+   * Picks the moves of one node in stages: the hash move, the killers, then the remaining moves
+   * in order of countermove and history. Later stages are only generated if earlier moves don't
+   * cause a cutoff.
+   */
+  private class MovePicker {
+    private final int[] moves;
+    private final int[] scores;
+    private int stage;
+    private int hashMove;
+    private int[] plyKillers;
+    private int killerIndex;
+    private int len;
+    private int score;
 
-    public WeightedMove(Integer move, int score) {
-      this.move = move;
-      this.score = score;
+    public MovePicker() {
+      moves = new int[MAX_MOVES];
+      scores = new int[MAX_MOVES];
+    }
+
+    public void init(int hashMove, int ply) {
+      this.stage = HASH_STAGE;
+      this.hashMove = hashMove;
+      this.plyKillers = killers[ply];
+      this.killerIndex = 0;
+    }
+
+    /**
+     * Returns the ordering score of the move last returned by {@link #next()}.
+     */
+    public int getScore() {
+      return score;
+    }
+
+    /**
+     * Returns the next move to search, or -1 if there are no more.
+     */
+    public int next() {
+      // Each stage that runs out of moves moves on to the next one
+      if (stage == HASH_STAGE) {
+        stage = KILLER_STAGE;
+        if (hashMove != -1 && game.canDoMove(hashMove)) {
+          score = HASH_MOVE_SCORE;
+          return hashMove;
+        }
+      }
+      if (stage == KILLER_STAGE) {
+        while (killerIndex < NUM_KILLERS) {
+          int killer = plyKillers[killerIndex++];
+          if (killer != -1 && killer != hashMove && game.canDoMove(killer)) {
+            score = KILLER_SCORE - (killerIndex - 1);
+            return killer;
+          }
+        }
+        stage = REMAINING_STAGE;
+        generateRemaining();
+      }
+      if (len == 0) {
+        return -1;
+      }
+      int move = pickBestMove(moves, scores, len--);
+      score = scores[len];
+      return move;
+    }
+
+    private void generateRemaining() {
+      int[] playerHistory = history[game.getCurrentPlayer()];
+      int countermove = getCountermove();
+      int numMoves = game.unsafeGenerateMoves(moves);
+      len = 0;
+      for (int i = 0; i < numMoves; i++) {
+        int move = moves[i];
+        if (move == hashMove || move == plyKillers[0] || move == plyKillers[1]) {
+          continue; // already searched
+        }
+        moves[len] = move;
+        scores[len] = (move == countermove) ? COUNTERMOVE_SCORE : playerHistory[move];
+        len++;
+      }
     }
   }
 
+  // Off by default: on our benchmark positions the narrower windows cost more nodes than they save
+  public static final int DEFAULT_ASPIRATION_WINDOW = 0;
+
+  // In self-play, late move reductions scored 61% against the search without them, and null move
+  // pruning 60% on top of them. The endgame solver is off: the heuristic search proves the same
+  // positions about as fast.
+  public static final Options DEFAULT_OPTIONS = new Options(true, true, 0);
+
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  // Late move reductions apply from this depth, after this many moves have been searched
+  private static final int LATE_MOVE_MIN_DEPTH = 2;
+  private static final int LATE_MOVE_MIN_MOVES = 3;
+  // Null move searches are this much shallower than the node (besides the pass itself), and only
+  // tried when the evaluation beats the bound by the margin, as passing usually loses
+  private static final int NULL_MOVE_REDUCTION = 3;
+  private static final int NULL_MOVE_MIN_DEPTH = NULL_MOVE_REDUCTION + 1;
+  private static final int NULL_MOVE_MARGIN = 5000;
+  // Moves of a search line, counting the null move allowed in it (nullMoveAllowed stops nesting)
+  private static final int MAX_PLIES = MAX_MOVES + MAX_NULL_MOVES;
+  // The endgame solver only takes over nodes with this much depth left, as it always searches the
+  // full win/loss/draw window and shallow nodes are cheaper to search heuristically
+  private static final int ENDGAME_SOLVER_MIN_DEPTH = 9;
+  // Only nodes with this much depth left use the proof store, as shallower proofs are cheap to redo
+  private static final int PROOF_STORE_MIN_DEPTH = 2;
+
+  // Move ordering scores, all above any history score
+  private static final int HASH_MOVE_SCORE = Integer.MAX_VALUE;
+  private static final int KILLER_SCORE = HASH_MOVE_SCORE - 1; // and one less for the second
+  private static final int COUNTERMOVE_SCORE = KILLER_SCORE - 2;
+  private static final int MAX_HISTORY_SCORE = 1 << 24;
+  private static final int NUM_KILLERS = 2;
+
+  // Move picking stages
+  private static final int HASH_STAGE = 0, KILLER_STAGE = 1, REMAINING_STAGE = 2;
+
+  // Nodes between checks of the stop flag and hard deadline; must be a power of 2
+  private static final int STOP_POLL_INTERVAL = 1 << 10;
+
   private final EvaluatedGame masterGame;
   private final TranspositionTable table;
+  private ProofStore proofStore; // null if none
+
+  private int aspirationWindow;
+  private Options options;
 
   private long nodes;
+  private SearchStats stats;
+
+  // Stop conditions, which may be changed from other threads while searching
+  private volatile boolean stopRequested;
+  private volatile long softDeadline; // System.nanoTime() after which no iteration is started
+  private volatile long hardDeadline; // System.nanoTime() after which search is aborted
+
+  // Whether the current search has seen a stop condition and is unwinding
+  private boolean aborted;
+  private final BooleanSupplier stopCondition;
+
+  // Created on first use, as most searches never reach the endgame
+  private EndgameSolver endgameSolver;
 
   // Used for move ordering
-  private final int[] history;
-  private int hashMove;
+  private final int[][] history; // [player][move], halved every iteration
+  private final int[][] killers; // [ply][slot], cleared every search
+  private final int[] countermoves; // [previous move]
+
+  // Move pickers and quiescence move buffers, indexed by game move number
+  private final MovePicker[] movePickers;
+  private final int[][] moveBuffers;
+
+  // Triangular PV table, indexed by ply from the root
+  private final PrincipalVariation[] pvs;
+
+  // Whether the score last returned by search() is proven, to avoid returning result objects
+  private boolean proof;
+  private int rootMoveNumber;
 
   // Separate game for search do/undo move so that exceptions don't pollute 'master' game
   private EvaluatedGame game;
 
   private boolean nullMoveAllowed;
-  private int baseDepth;
 
   public Searcher(EvaluatedGame game) {
+    this(game, new TranspositionTable());
+  }
+
+  public Searcher(EvaluatedGame game, Options options) {
+    this(game, new TranspositionTable());
+    this.options = options;
+  }
+
+  /**
+   * Creates a searcher of the given game using the given table, which may be shared with other
+   * searchers running concurrently (as long as the game is not modified while they run).
+   */
+  public Searcher(EvaluatedGame game, TranspositionTable table) {
     this.masterGame = game;
-    this.table = new TranspositionTable();
+    this.table = table;
+    this.aspirationWindow = DEFAULT_ASPIRATION_WINDOW;
+    this.options = DEFAULT_OPTIONS;
+    this.softDeadline = NO_DEADLINE;
+    this.hardDeadline = NO_DEADLINE;
+    this.stopCondition = this::isStopDue;
+    this.stats = new SearchStats();
+
+    this.history = new int[NUM_PLAYERS + 1][BOARD_SIZE];
+    this.killers = new int[MAX_PLIES + 1][NUM_KILLERS];
+    this.countermoves = new int[BOARD_SIZE];
+    Arrays.fill(countermoves, -1);
 
-    this.history = new int[BOARD_SIZE];
-    this.hashMove = -1;
+    this.movePickers = new MovePicker[MAX_PLIES + 1];
+    for (int i = 0; i < movePickers.length; i++) {
+      movePickers[i] = new MovePicker();
+    }
+    this.moveBuffers = new int[MAX_PLIES + 1][MAX_MOVES];
+
+    this.pvs = new PrincipalVariation[MAX_PLIES + 1];
+    for (int i = 0; i < pvs.length; i++) {
+      pvs[i] = new PrincipalVariation();
+    }
   }
 
   public Game getGame() {
@@ -132,113 +398,421 @@ public class Searcher {
     nodes = 0;
   }
 
+  /**
+   * Returns the stats of the current or last search.
+   */
+  public SearchStats getStats() {
+    return stats;
+  }
+
+  public int getAspirationWindow() {
+    return aspirationWindow;
+  }
+
+  /**
+   * Sets the half-width of the root window around the previous iteration's score, or 0 to
+   * always search with a full window.
+   */
+  public void setAspirationWindow(int aspirationWindow) {
+    this.aspirationWindow = aspirationWindow;
+  }
+
+  public Options getOptions() {
+    return options;
+  }
+
+  public void setOptions(Options options) {
+    this.options = options;
+  }
+
+  public ProofStore getProofStore() {
+    return proofStore;
+  }
+
+  /**
+   * Sets a store of proven positions, which may be shared with other searchers, to check before
+   * the table and to add proven wins and losses to, or null for none.
+   */
+  public void setProofStore(ProofStore proofStore) {
+    this.proofStore = proofStore;
+  }
+
+  /**
+   * Sets the deadlines (as {@link System#nanoTime()} values, or {@link #NO_DEADLINE}) for the
+   * next or current search, and clears any stop request.
+   */
+  public void setDeadlines(long softDeadline, long hardDeadline) {
+    this.softDeadline = softDeadline;
+    this.hardDeadline = hardDeadline;
+    this.stopRequested = false;
+  }
+
+  /**
+   * Asks the search running in another thread to abort soon. Stays in effect until
+   * {@link #setDeadlines} is called.
+   */
+  public void stop() {
+    stopRequested = true;
+  }
+
+  /**
+   * Searches to the given depth with a full window.
+   */
   public Result search(int depth) {
+    prepareSearch();
+    ageHistory();
+    return searchRoot(depth, null);
+  }
+
+  /**
+   * Searches with iterative deepening up to the given depth, until the result is proven, the soft
+   * deadline passes between iterations, or the search is stopped. Returns the last completed
+   * iteration's result, or null if none.
+   */
+  public Result searchIteratively(int maxDepth, IterationListener listener) {
+    return searchIteratively(1, maxDepth, listener);
+  }
+
+  Result searchIteratively(int minDepth, int maxDepth, IterationListener listener) {
+    prepareSearch();
+    Result best = null;
+    for (int depth = minDepth; depth <= maxDepth; depth++) {
+      if (best != null && (stopRequested || System.nanoTime() >= softDeadline))
+        break;
+      IterationEvent event = new IterationEvent();
+      event.begin();
+      // Decays history between iterations and moves, so it favors recent cutoffs
+      ageHistory();
+      Result result = searchRoot(depth, best);
+      if (result == null)
+        break;
+      if (event.shouldCommit()) {
+        event.depth = depth;
+        event.nodes = result.getStats().getIterationNodes(depth);
+        event.score = result.getScore();
+        event.proven = result.isProvenResult();
+        event.commit();
+      }
+      best = result;
+      if (listener != null)
+        listener.onIteration(depth, result);
+      if (result.isProvenResult())
+        break;
+    }
+    return best;
+  }
+
+  /**
+   * Searches with iterative deepening like {@link #searchIteratively(int, IterationListener)}, but
+   * for the best given number of root moves (or all, if fewer), each with its own exact score and
+   * PV, best first. Returns the lines of the last completed iteration, or null if none.
+   */
+  public List<Result> searchMultiPv(int numPvs, int maxDepth, MultiPvListener listener) {
+    prepareSearch();
+    int[] rootMoves = new int[MAX_MOVES];
+    int numRootMoves = game.generateMoves(rootMoves);
+    numPvs = Math.min(numPvs, numRootMoves);
+    List<Result> best = null;
+    for (int depth = 1; depth <= maxDepth && numPvs > 0; depth++) {
+      if (best != null && (stopRequested || System.nanoTime() >= softDeadline))
+        break;
+      ageHistory();
+      if (best != null) {
+        // Search the last iteration's lines first, in order, to set the bound early
+        for (int i = 0; i < numPvs; i++) {
+          int move = best.get(i).getPVMove();
+          for (int j = i; j < numRootMoves; j++) {
+            if (rootMoves[j] == move) {
+              rootMoves[j] = rootMoves[i];
+              rootMoves[i] = move;
+              break;
+            }
+          }
+        }
+      }
+      List<Result> results = searchMultiPvRoot(depth, numPvs, rootMoves, numRootMoves);
+      if (results == null)
+        break;
+      best = results;
+      if (listener != null)
+        listener.onIteration(depth, results);
+      boolean proven = true;
+      for (Result result : results) {
+        proven &= result.isProvenResult();
+      }
+      if (proven)
+        break;
+    }
+    return best;
+  }
+
+  /**
+   * Searches every root move to the given depth, keeping the best lines. Once there are enough, a
+   * move only needs to be searched for scores that would beat the worst kept line, so most are
+   * refuted as cheaply as in a single-PV search. Returns null if aborted.
+   */
+  private List<Result> searchMultiPvRoot(int depth, int numPvs, int[] rootMoves, int numRootMoves) {
+    nullMoveAllowed = true;
+    long startNodes = stats.getNodes();
+    boolean maxi = game.getCurrentPlayer() == PLAYER_MAX;
+    List<Result> results = new ArrayList<>(numPvs + 1);
+    for (int i = 0; i < numRootMoves; i++) {
+      int move = rootMoves[i];
+      int alpha = MIN_SCORE - 1;
+      int beta = MAX_SCORE + 1;
+      if (results.size() == numPvs) {
+        int bound = results.get(numPvs - 1).getScore();
+        if (maxi) alpha = bound;
+        else beta = bound;
+      }
+      game.unsafeDoMove(move);
+      int score = search(depth - 1, alpha, beta);
+      game.unsafeUndoMove();
+      if (aborted)
+        return null;
+      if (maxi ? score <= alpha : score >= beta)
+        continue;
+
+      PrincipalVariation pv = pvs[0];
+      pv.set(move, pvs[1]);
+      Result result = new Result(score, pv.toList(), proof, null);
+      int rank = results.size();
+      while (rank > 0 && (maxi ? score > results.get(rank - 1).getScore()
+          : score < results.get(rank - 1).getScore())) {
+        rank--;
+      }
+      results.add(rank, result);
+      if (results.size() > numPvs) {
+        results.remove(numPvs);
+      }
+    }
+    stats.endIteration(depth, startNodes);
+
+    // Every line shares the stats as of the end of the iteration
+    SearchStats iterationStats = new SearchStats(stats);
+    List<Result> lines = new ArrayList<>(numPvs);
+    for (Result result : results) {
+      lines.add(new Result(result.score, result.pv, result.proof, iterationStats));
+    }
+    return lines;
+  }
+
+  private void prepareSearch() {
     game = new EvaluatedGame(masterGame);
+    rootMoveNumber = game.getMoveNumber();
+    table.setMoveNumberCutoff(rootMoveNumber);
+    aborted = false;
+    stats = new SearchStats();
+    for (int[] plyKillers : killers) {
+      Arrays.fill(plyKillers, -1);
+    }
+  }
+
+  /**
+   * Searches the root to the given depth, in an aspiration window around the previous result's
+   * score (if any) that is widened and re-searched on failure. Returns null if aborted.
+   */
+  private Result searchRoot(int depth, Result previous) {
     nullMoveAllowed = true;
-    baseDepth = depth;
-    table.setMoveNumberCutoff(game.getMoveNumber());
-    return search(depth, MIN_SCORE - 1, MAX_SCORE + 1);
+    long startNodes = stats.getNodes();
+
+    int alpha = MIN_SCORE - 1;
+    int beta = MAX_SCORE + 1;
+    int window = aspirationWindow;
+    if (previous != null && window > 0 && !previous.isProvenResult()) {
+      alpha = Math.max(previous.getScore() - window, MIN_SCORE - 1);
+      beta = Math.min(previous.getScore() + window, MAX_SCORE + 1);
+    }
+    while (true) {
+      int score = search(depth, alpha, beta);
+      if (aborted)
+        return null;
+      if (score <= alpha && alpha > MIN_SCORE - 1) { // fail low
+        stats.aspirationResearches++;
+        window *= 4;
+        alpha = Math.max(score - window, MIN_SCORE - 1);
+      } else if (score >= beta && beta < MAX_SCORE + 1) { // fail high
+        stats.aspirationResearches++;
+        window *= 4;
+        beta = Math.min(score + window, MAX_SCORE + 1);
+      } else {
+        stats.endIteration(depth, startNodes);
+        return new Result(score, pvs[0].toList(), proof, new SearchStats(stats));
+      }
+    }
   }
 
-  private Result search(int depth, int alpha, int beta) {
-    nodes++;
+  private int search(int depth, int alpha, int beta) {
+    countNode();
+    stats.mainNodes++;
 
     boolean maxi = game.getCurrentPlayer() == PLAYER_MAX;
+    int ply = game.getMoveNumber() - rootMoveNumber;
+    PrincipalVariation pv = pvs[ply];
+    pv.clear();
+
+    // Check proof store, whose entries hold at any depth
+    if (proofStore != null && depth >= PROOF_STORE_MIN_DEPTH) {
+      long proven = proofStore.get(game.getZobristKey());
+      stats.proofStoreProbes++;
+      if (proven != TranspositionTable.MISSING
+          && cutsOff(Entry.type(proven), Entry.score(proven), alpha, beta, maxi)) {
+        stats.proofStoreHits++;
+        if (alpha + 1 < beta) {
+          readPvFromTable(pv, Entry.move(proven));
+        }
+        proof = true;
+        return Entry.score(proven);
+      }
+    }
 
     // Check transposition table
-    TranspositionTable.Entry ttEntry = table.get(game.getZobristKey());
-    if (ttEntry != null) {
-      if (ttEntry.depth >= depth) {
-        byte type = ttEntry.type;
-        int score = ttEntry.score;
-        if (type == PV_NODE
-            || (type == CUT_NODE && (maxi ? score >= beta : score <= alpha))
-            || (type == ALL_NODE && (maxi ? score <= alpha : score >= beta))) {
-          int move = ttEntry.move;
-          List<Integer> pv = (move != -1) ? Collections.singletonList(move) : null;
-          return new Result(score, pv, ttEntry.proof);
+    long ttEntry = table.get(game.getZobristKey());
+    stats.tableProbes++;
+    int hashMove = -1;
+    if (ttEntry != TranspositionTable.MISSING) {
+      hashMove = Entry.move(ttEntry);
+      byte type = Entry.type(ttEntry);
+      stats.tableHits[type]++;
+      if (Entry.depth(ttEntry) >= depth) {
+        int score = Entry.score(ttEntry);
+        if (cutsOff(type, score, alpha, beta, maxi)) {
+          stats.usableTableHits[type]++;
+          if (alpha + 1 < beta) { // only PV windows need the PV
+            readPvFromTable(pv, hashMove);
+          }
+          proof = Entry.proof(ttEntry);
+          return score;
         }
       } else {
-        hashMove = ttEntry.move;
+        stats.shallowTableHits[type]++;
       }
     }
 
     // Check win/draw conditions
     if (game.hasWinner()) {
-      int score = (game.getWinner() == PLAYER_MAX) ? MAX_SCORE : MIN_SCORE;
-      return new Result(score, null, true);
+      proof = true;
+      return (game.getWinner() == PLAYER_MAX) ? MAX_SCORE : MIN_SCORE;
+    }
+    if (!game.unsafeHasMoves()) { // draw
+      proof = true;
+      return DRAW_SCORE;
     }
-    Iterator<Integer> moves = game.unsafeGenerateMoves().iterator();
-    if (!moves.hasNext()) { // draw
-      return new Result(DRAW_SCORE, null, true);
+
+    // Solve exactly once few enough cells are left
+    if (options.endgameSolverCells > 0 && depth >= ENDGAME_SOLVER_MIN_DEPTH
+        && EndgameSolver.countPlayableCells(game) <= options.endgameSolverCells) {
+      return solveEndgame(pv);
     }
 
     // Evaluate at zero depth
     if (depth <= 0) {
-      return new Result(quiescence(alpha, beta), null, false);
-    }
-
-    // Null move reduction
-//    if (nullMoveAllowed && depth < baseDepth) {
-//      int r = (depth + 14) / 5; // min: 3
-//      nullMoveAllowed = false;
-//      game.doNullMove();
-//      Result nullResult = maxi
-//          ? search(depth - r - 1, beta - 1, beta)
-//          : search(depth - r - 1, alpha, alpha + 1);
-//      game.undoNullMove();
-//      nullMoveAllowed = true;
-//      if (maxi ? nullResult.getScore() >= beta : nullResult.getScore() <= alpha) {
-//        depth -= 3;
-//        if (depth <= 0) {
-//          return new Result(quiescence(alpha, beta), null, false);
-//        }
-//      }
-//    }
+      proof = false;
+      return quiescence(alpha, beta);
+    }
+
+    // Verified null move pruning: passing gives the opponent a free choice of microboard, which
+    // is rarely better than any real move but can be, so a reduced search must confirm the cutoff
+    if (options.nullMovePruning
+        && nullMoveAllowed
+        && ply > 0
+        && depth >= NULL_MOVE_MIN_DEPTH
+        && alpha + 1 == beta
+        && (maxi ? game.evaluate() >= beta + NULL_MOVE_MARGIN
+            : game.evaluate() <= alpha - NULL_MOVE_MARGIN)) {
+      nullMoveAllowed = false;
+      game.doNullMove();
+      int nullScore = search(depth - NULL_MOVE_REDUCTION - 1, alpha, beta);
+      game.undoNullMove();
+      if (!aborted && (maxi ? nullScore >= beta : nullScore <= alpha)) {
+        int verifyScore = search(depth - NULL_MOVE_REDUCTION, alpha, beta);
+        if (!aborted && (maxi ? verifyScore >= beta : verifyScore <= alpha)) {
+          nullMoveAllowed = true;
+          proof = false;
+          return maxi ? beta : alpha;
+        }
+        // The verification search reused this node's PV row
+        pv.clear();
+      }
+      nullMoveAllowed = true;
+      if (aborted) {
+        proof = false;
+        return 0;
+      }
+    }
 
     // Recursive search to find best move/score
-    List<Integer> pv = new ArrayList<>(depth);
-    boolean proof = false;
+    boolean bestProof = false;
     byte ttEntryType = ALL_NODE;
     int bestMove = -1;
     boolean searchPv = true; // used for negascout/PVS
-    for (int move : generateSortedMoves(moves)) {
-      Result result;
+    MovePicker movePicker = movePickers[game.getMoveNumber()];
+    movePicker.init(hashMove, ply);
+    int player = game.getCurrentPlayer();
+    int movesSearched = 0;
+    for (int move = movePicker.next(); move != -1; move = movePicker.next()) {
+      int score;
+      int macroboard = game.getMacroboardMask(player);
       game.unsafeDoMove(move);
-      if (searchPv) {
-        result = search(depth - 1, alpha, beta);
+      int reduction = 0;
+      if (options.lateMoveReductions
+          && depth >= LATE_MOVE_MIN_DEPTH
+          && movesSearched >= LATE_MOVE_MIN_MOVES
+          && movePicker.getScore() < COUNTERMOVE_SCORE
+          && isQuietMove(player, macroboard)) {
+        reduction = 1;
+      }
+      if (searchPv && reduction == 0) {
+        score = search(depth - 1, alpha, beta);
       } else {
+        // Null-window search, reduced if late and quiet, then re-searched at full depth if it
+        // fails high, and then with the full window if that is wider
         if (maxi) {
-          result = search(depth - 1, alpha, alpha + 1);
-          if (result.getScore() > alpha)
-            result = search(depth - 1, alpha, beta);
+          score = search(depth - 1 - reduction, alpha, alpha + 1);
+          if (score > alpha && reduction > 0) {
+            stats.reductionResearches++;
+            score = search(depth - 1, alpha, alpha + 1);
+          }
+          if (alpha + 1 < beta && score > alpha) {
+            stats.pvsResearches++;
+            score = search(depth - 1, alpha, beta);
+          }
         } else {
-          result = search(depth - 1, beta - 1, beta);
-          if (result.getScore() < beta)
-            result = search(depth - 1, alpha, beta);
+          score = search(depth - 1 - reduction, beta - 1, beta);
+          if (score < beta && reduction > 0) {
+            stats.reductionResearches++;
+            score = search(depth - 1, beta - 1, beta);
+          }
+          if (alpha + 1 < beta && score < beta) {
+            stats.pvsResearches++;
+            score = search(depth - 1, alpha, beta);
+          }
         }
       }
       game.unsafeUndoMove();
-      if (Thread.currentThread().isInterrupted())
-        return new Result(0, null, false);
-      int score = result.getScore();
+      movesSearched++;
+      if (aborted) {
+        proof = false;
+        return 0;
+      }
       if (maxi ? score > alpha : score < beta) {
         if (maxi) alpha = score;
         else beta = score;
         bestMove = move;
-        proof = result.isProvenResult();
+        bestProof = proof;
         if (alpha >= beta) {
+          stats.cutoffs++;
+          if (movesSearched == 1) {
+            stats.firstMoveCutoffs++;
+          }
           ttEntryType = CUT_NODE;
-          history[move] += 1 << depth;
+          updateOrdering(move, depth, ply);
           break;
         } else {
           ttEntryType = PV_NODE;
           searchPv = false;
         }
-        pv.clear();
-        pv.add(move);
-        if (result.getPV() != null)
-          pv.addAll(result.getPV());
+        pv.set(move, pvs[ply + 1]);
       }
     }
 
@@ -250,15 +824,96 @@ public class Searcher {
       score--;
     }
 
-    // Cache to transposition table
+    // Cache to transposition table, and proven wins and losses to the proof store
+    table.insert(
+        game.getZobristKey(), ttEntryType, depth, bestMove, score, bestProof, game.getMoveNumber());
+    if (proofStore != null && bestProof && depth >= PROOF_STORE_MIN_DEPTH
+        && Math.abs(score) >= MAX_SCORE - MAX_MOVES) {
+      proofStore.insert(
+          game.getZobristKey(), ttEntryType, bestMove, score, game.getMoveNumber());
+    }
+
+    proof = bestProof;
+    return score;
+  }
+
+  /**
+   * Solves the current position exactly, and stores the proven result in the table and the proof
+   * store.
+   */
+  private int solveEndgame(PrincipalVariation pv) {
+    if (endgameSolver == null) {
+      endgameSolver = new EndgameSolver();
+    }
+    long solverNodes = endgameSolver.getStats().nodes;
+    int result = endgameSolver.solve(game, stopCondition);
+    solverNodes = endgameSolver.getStats().nodes - solverNodes;
+    nodes += solverNodes;
+    stats.solverNodes += solverNodes;
+    if (result == EndgameSolver.UNKNOWN) {
+      aborted = true;
+      proof = false;
+      return 0;
+    }
+
+    if (game.getCurrentPlayer() != PLAYER_MAX) {
+      result = -result;
+    }
+    int distance = endgameSolver.getDistance();
+    int score = (result == EndgameSolver.WIN) ? MAX_SCORE - distance
+        : (result == EndgameSolver.LOSS) ? MIN_SCORE + distance
+        : DRAW_SCORE;
+    int move = endgameSolver.getBestMove();
+    if (move != -1) {
+      pv.add(move);
+    }
     table.insert(
-        game.getZobristKey(), ttEntryType, depth, bestMove, score, proof, game.getMoveNumber());
+        game.getZobristKey(), PV_NODE, MAX_MOVES, move, score, true, game.getMoveNumber());
+    if (proofStore != null) {
+      proofStore.insert(game.getZobristKey(), PV_NODE, move, score, game.getMoveNumber());
+    }
+    proof = true;
+    return score;
+  }
 
-    return new Result(score, pv, proof);
+  /**
+   * Returns whether a stored score of the given entry type ends a node with the given window.
+   */
+  private static boolean cutsOff(byte type, int score, int alpha, int beta, boolean maxi) {
+    return type == PV_NODE
+        || (type == CUT_NODE && (maxi ? score >= beta : score <= alpha))
+        || (type == ALL_NODE && (maxi ? score <= alpha : score >= beta));
+  }
+
+  /**
+   * Returns whether the move just made by the given player, whose macroboard mask was the given
+   * one before, neither won a microboard nor gave the opponent a free choice of microboard.
+   */
+  private boolean isQuietMove(int player, int prevMacroboard) {
+    return game.getMacroboardMask(player) == prevMacroboard
+        && game.getNextMacroIndex() != ANY_MACRO_INDEX;
+  }
+
+  /**
+   * Fills the PV of a transposition table cutoff by following hash moves from the given one.
+   */
+  private void readPvFromTable(PrincipalVariation pv, int move) {
+    int movesDone = 0;
+    while (move != -1 && game.canDoMove(move)) {
+      pv.add(move);
+      game.unsafeDoMove(move);
+      movesDone++;
+      long ttEntry = table.get(game.getZobristKey());
+      move = (ttEntry != TranspositionTable.MISSING) ? Entry.move(ttEntry) : -1;
+    }
+    for (int i = 0; i < movesDone; i++) {
+      game.unsafeUndoMove();
+    }
   }
 
   private int quiescence(int alpha, int beta) {
-    nodes++;
+    countNode();
+    stats.quiescenceNodes++;
 
     boolean maxi = game.getCurrentPlayer() == PLAYER_MAX;
 
@@ -266,8 +921,7 @@ public class Searcher {
     if (game.hasWinner()) {
       return (game.getWinner() == PLAYER_MAX) ? MAX_SCORE : MIN_SCORE;
     }
-    Iterator<Integer> moves = game.unsafeGenerateMoves().iterator();
-    if (!moves.hasNext()) { // draw
+    if (!game.unsafeHasMoves()) { // draw
       return DRAW_SCORE;
     }
 
@@ -284,11 +938,11 @@ public class Searcher {
         beta = standPat;
     }
 
-    while (moves.hasNext()) {
-      int move = moves.next();
-      if (!game.unsafeCheckCompletesLine(move)) {
-        continue;
-      }
+    // Only search moves that win a microboard
+    int[] moves = moveBuffers[game.getMoveNumber()];
+    int numMoves = game.unsafeGenerateLineCompletingMoves(moves);
+    for (int i = 0; i < numMoves; i++) {
+      int move = moves[i];
       game.unsafeDoMove(move);
       int score = quiescence(alpha, beta);
       game.unsafeUndoMove();
@@ -309,72 +963,77 @@ public class Searcher {
     return maxi ? alpha : beta;
   }
 
-  public Iterable<Integer> generateSortedMoves(Iterator<Integer> movesIterator) {
-    int maxLength = (game.getNextMacroIndex() != ANY_MACRO_INDEX) ? MICROBOARD_SIZE : BOARD_SIZE;
+  private void countNode() {
+    if ((++nodes & (STOP_POLL_INTERVAL - 1)) == 0 && isStopDue()) {
+      aborted = true;
+    }
+  }
 
-    int[] moves = new int[maxLength];
-    int[] scores = new int[maxLength];
+  private boolean isStopDue() {
+    // Interrupts are still honored for callers that cancel tasks
+    return stopRequested
+        || System.nanoTime() >= hardDeadline
+        || Thread.currentThread().isInterrupted();
+  }
 
-    int i = 0;
-    while (movesIterator.hasNext()) {
-      int move = movesIterator.next();
-      moves[i] = move;
-      scores[i] = (hashMove == move) ? Integer.MAX_VALUE : history[move];
-      i++;
+  /**
+   * Records a move that caused a cutoff at the given depth and ply.
+   */
+  private void updateOrdering(int move, int depth, int ply) {
+    int[] playerHistory = history[game.getCurrentPlayer()];
+    playerHistory[move] += depth * depth;
+    if (playerHistory[move] > MAX_HISTORY_SCORE) {
+      ageHistory();
     }
 
-    final int originalLen = i;
-    return () -> new Iterator<Integer>() {
-      int len = originalLen;
+    int[] plyKillers = killers[ply];
+    if (plyKillers[0] != move) {
+      plyKillers[1] = plyKillers[0];
+      plyKillers[0] = move;
+    }
 
-      @Override
-      public boolean hasNext() {
-        return len > 0;
+    int lastMove = game.getMoveNumber() > 0 ? game.getLastMove() : -1;
+    if (lastMove >= 0) { // not root or null move
+      countermoves[lastMove] = move;
+    }
+  }
+
+  private int getCountermove() {
+    int lastMove = game.getMoveNumber() > 0 ? game.getLastMove() : -1;
+    return lastMove >= 0 ? countermoves[lastMove] : -1;
+  }
+
+  private void ageHistory() {
+    for (int[] playerHistory : history) {
+      for (int move = 0; move < playerHistory.length; move++) {
+        playerHistory[move] >>= 1;
       }
+    }
+  }
 
-      @Override
-      public Integer next() {
-        int bestI = 0;
-        for (int i = 1; i < len; i++) {
-          if (scores[bestI] < scores[i]) {
-            bestI = i;
-          }
-        }
-        len--;
-        if (bestI != len) {
-          // Swap best with last
-          int tempMove, tempScore;
-          tempMove = moves[bestI];
-          tempScore = scores[bestI];
-          moves[bestI] = moves[len];
-          scores[bestI] = scores[len];
-          moves[len] = tempMove;
-          scores[len] = tempScore;
-        }
-        return moves[len];
+  /**
+   * Selects the best scored of the first len moves, swaps it (and its score) to position
+   * len - 1, and returns it.
+   */
+  private static int pickBestMove(int[] moves, int[] scores, int len) {
+    int bestI = 0;
+    for (int i = 1; i < len; i++) {
+      if (scores[bestI] < scores[i]) {
+        bestI = i;
       }
-    };
-
-//    PriorityQueue<WeightedMove> sortedMoves =
-//        new PriorityQueue<>(maxLength, (m1, m2) -> m2.score - m1.score);
-//
-//    while (movesIterator.hasNext()) {
-//      int move = movesIterator.next();
-//      int score = (hashMove == move) ? Integer.MAX_VALUE : history[move];
-//      sortedMoves.add(new WeightedMove(move, score));
-//    }
-//
-//    return () -> new Iterator<Integer>() {
-//      @Override
-//      public boolean hasNext() {
-//        return !sortedMoves.isEmpty();
-//      }
-//
-//      @Override
-//      public Integer next() {
-//        return sortedMoves.remove().move;
-//      }
-//    };
+    }
+    len--;
+    if (bestI != len) {
+      // Swap best with last
+      int tempMove, tempScore;
+      tempMove = moves[bestI];
+      tempScore = scores[bestI];
+      moves[bestI] = moves[len];
+      scores[bestI] = scores[len];
+      moves[len] = tempMove;
+      scores[len] = tempScore;
+    }
+    return moves[len];
   }
 
 }
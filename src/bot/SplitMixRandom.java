@@ -0,0 +1,39 @@
+package bot;
+
+/**
+ * SplitMix64 generator: much cheaper than {@link java.util.Random} and seedable, for random moves
+ * and playouts. Not thread-safe, so use one per thread.
+ *
+ * @author Vance Zuo
+ */
+public class SplitMixRandom {
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private long state;
+
+  public SplitMixRandom(long seed) {
+    state = seed;
+  }
+
+  public SplitMixRandom() {
+    this(mix(System.nanoTime() ^ Thread.currentThread().getId()));
+  }
+
+  public long nextLong() {
+    return mix(state += GOLDEN_GAMMA);
+  }
+
+  /**
+   * Returns a number from 0 (inclusive) to the given positive bound (exclusive), by scaling 32
+   * random bits instead of dividing. The bias is below 2^-23 for bounds up to 81.
+   */
+  public int nextInt(int bound) {
+    return (int) (((nextLong() >>> 32) * bound) >>> 32);
+  }
+
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -1,9 +1,24 @@
 package bot;
 
+import java.util.Arrays;
+
+import static bot.Util.MAX_MOVES;
+
 /**
+ * Transposition table that can be shared between search threads without locking. Each entry is
+ * a packed data long stored next to its key XOR the data, so a torn read from a concurrent write
+ * fails key verification instead of returning mixed data.
+ * <p>
+ * Entries are grouped in buckets of 4 adjacent entries (64 bytes) that a key may use any of. The
+ * first 3 keep the entries most worth keeping, by depth and by age in search generations, and the
+ * last is always replaced by entries that aren't worth more than any of them.
+ *
  * @author Vance Zuo
  */
 public class TranspositionTable {
+  /**
+   * Accessors for the fields of packed entry data.
+   */
   public static class Entry {
     public static class Type {
       public static final byte EMPTY = 0, PV_NODE = 1, CUT_NODE = 2, ALL_NODE = 3;
@@ -12,27 +27,67 @@ public class TranspositionTable {
       };
     }
 
-    public long key;
-    public byte type;
-    public byte depth;
-    public byte move;
-    public int score;
-    public boolean proof;
-    public byte moveNum;
+    // Bit layout: type (0-1), depth (2-9), move (10-17), proof (18), moveNum (19-26),
+    // generation (27-31), score (32-63)
+    private static final int DEPTH_SHIFT = 2, MOVE_SHIFT = 10, PROOF_SHIFT = 18,
+        MOVE_NUM_SHIFT = 19, GENERATION_SHIFT = 27, SCORE_SHIFT = 32;
+    private static final int GENERATION_MASK = 0x1F;
 
-    @Override
-    public String toString() {
+    public static long pack(
+        byte type, int depth, int move, int score, boolean proof, int moveNum, int generation) {
+      return type
+          | (depth & 0xFFL) << DEPTH_SHIFT
+          | (move & 0xFFL) << MOVE_SHIFT
+          | (proof ? 1L : 0L) << PROOF_SHIFT
+          | (moveNum & 0xFFL) << MOVE_NUM_SHIFT
+          | (long) (generation & GENERATION_MASK) << GENERATION_SHIFT
+          | (long) score << SCORE_SHIFT;
+    }
+
+    public static byte type(long data) {
+      return (byte) (data & 0b11);
+    }
+
+    public static byte depth(long data) {
+      return (byte) (data >>> DEPTH_SHIFT);
+    }
+
+    public static byte move(long data) {
+      return (byte) (data >>> MOVE_SHIFT);
+    }
+
+    public static boolean proof(long data) {
+      return ((data >>> PROOF_SHIFT) & 1) != 0;
+    }
+
+    public static byte moveNum(long data) {
+      return (byte) (data >>> MOVE_NUM_SHIFT);
+    }
+
+    public static int generation(long data) {
+      return (int) (data >>> GENERATION_SHIFT) & GENERATION_MASK;
+    }
+
+    public static int score(long data) {
+      return (int) (data >> SCORE_SHIFT);
+    }
+
+    public static String toString(long data) {
       return String.format(
-          "TranspositionTable.Entry(%s=%s, %s=%s, %s=%s, %s=%s, %s=%s, %s=%s)",
-          "key", key,
-          "type", Type.NAMES[type],
-          "depth", depth,
-          "move", move,
-          "score", score,
-          "moveNum", moveNum);
+          "TranspositionTable.Entry(%s=%s, %s=%s, %s=%s, %s=%s, %s=%s, %s=%s, %s=%s)",
+          "type", Type.NAMES[type(data)],
+          "depth", depth(data),
+          "move", move(data),
+          "score", score(data),
+          "proof", proof(data),
+          "moveNum", moveNum(data),
+          "generation", generation(data));
     }
   }
 
+  /**
+   * Counters are not synchronized, so they are approximate when the table is shared.
+   */
   public static class Stats {
     public int inserts, creates, replaces, gets, hits;
 
@@ -48,34 +103,98 @@ public class TranspositionTable {
     }
   }
 
-  private static final int DEFAULT_LOG_SIZE = 18;
+  // Returned by get() on a miss; no stored entry has type EMPTY
+  public static final long MISSING = 0;
+
+  public static final int DEFAULT_MEGABYTES = 4;
 
-  private final Entry[] table;
+  private static final int ENTRY_BYTES = 2 * Long.BYTES;
+  private static final int LOG_BUCKET_SIZE = 2, BUCKET_SIZE = 1 << LOG_BUCKET_SIZE;
+  // Keeps the entries' array, of 2 longs per entry, within the int range of array lengths
+  private static final int MAX_LOG_SIZE = 29;
+
+  // Depth an entry is worth less for each generation of age
+  private static final int AGE_DEPTH = 2;
+
+  // Pairs of key ^ data, then data, in buckets
+  private long[] entries;
+  private int bucketMask;
   private Stats stats;
 
-  private byte moveNum;
+  private volatile byte moveNum;
+  private volatile int generation;
 
   public TranspositionTable(int logSize) {
-    table = new Entry[1 << logSize];
-    for (int i = 0; i < table.length; i++) {
-      table[i] = new Entry();
-    }
+    allocate(logSize);
     stats = new Stats();
   }
 
   public TranspositionTable() {
-    this(DEFAULT_LOG_SIZE);
+    this(logSizeForMegabytes(DEFAULT_MEGABYTES));
+  }
+
+  /**
+   * Creates a table of the most entries (a power of 2) that fit in the given number of megabytes.
+   */
+  public static TranspositionTable withMegabytes(int megabytes) {
+    return new TranspositionTable(logSizeForMegabytes(megabytes));
+  }
+
+  private static int logSizeForMegabytes(int megabytes) {
+    long entries = Math.max(1, ((long) megabytes << 20) / ENTRY_BYTES);
+    return Math.min(63 - Long.numberOfLeadingZeros(entries), MAX_LOG_SIZE);
+  }
+
+  private void allocate(int logSize) {
+    if (logSize > MAX_LOG_SIZE) {
+      throw new IllegalArgumentException("Table log size above " + MAX_LOG_SIZE + ": " + logSize);
+    }
+    logSize = Math.max(logSize, LOG_BUCKET_SIZE);
+    entries = new long[2 << logSize];
+    bucketMask = (1 << (logSize - LOG_BUCKET_SIZE)) - 1;
+  }
+
+  public int size() {
+    return (bucketMask + 1) * BUCKET_SIZE;
+  }
+
+  public int getMegabytes() {
+    return (int) (((long) size() * ENTRY_BYTES) >> 20);
+  }
+
+  /**
+   * Replaces the table with an empty one of the most entries that fit in the given number of
+   * megabytes. Must not be called while any search uses the table.
+   */
+  public void resize(int megabytes) {
+    allocate(logSizeForMegabytes(megabytes));
   }
 
-  public Entry[] getTable() {
-    return table;
+  /**
+   * Empties the table, e.g. between games. Must not be called while any search uses the table.
+   */
+  public void clear() {
+    Arrays.fill(entries, 0);
   }
 
   public Stats getStats() {
     return stats;
   }
 
-  public void setMoveNumberCutoff(int moveNumCutoff) {
+  public int getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Sets the move number before which entries are unreachable, and so always replaced. A new
+   * cutoff (i.e. a search from a new position) also starts a new generation of entries, which
+   * makes the existing ones older. Searchers sharing the table all set the same cutoff, so this
+   * is synchronized for only the first to start the generation.
+   */
+  public synchronized void setMoveNumberCutoff(int moveNumCutoff) {
+    if ((byte) moveNumCutoff != moveNum) {
+      generation = (generation + 1) & Entry.GENERATION_MASK;
+    }
     this.moveNum = (byte) moveNumCutoff;
   }
 
@@ -85,9 +204,9 @@ public class TranspositionTable {
 
   public double estimateLoad() {
     double occupied = 0.0;
-    int sampleSize = 1000;
-    for (int i = 0; i < Math.min(sampleSize, table.length); i++) {
-      if (table[i].type != Entry.Type.EMPTY) {
+    int sampleSize = Math.min(1000, size());
+    for (int i = 0; i < sampleSize; i++) {
+      if (Entry.type(entries[2 * i + 1]) != Entry.Type.EMPTY) {
         occupied++;
       }
     }
@@ -98,42 +217,95 @@ public class TranspositionTable {
       long key, byte type, int depth, int move, int score, boolean proof, int moveNum) {
     stats.inserts++;
 
-    Entry entry = table[keyToIndex(key)];
-    if (entry.type != Entry.Type.EMPTY) {
-      // Depth and move number replacement strategy
-      if (entry.depth > depth && entry.moveNum >= this.moveNum) {
+    int bucket = keyToIndex(key);
+    int index = find(bucket, key);
+    if (index != -1) {
+      // Keep a proven win or loss, or a deeper proof or entry from this generation
+      long entry = entries[index + 1];
+      if ((Entry.proof(entry) && !proof
+              && (isWinOrLoss(Entry.score(entry)) || Entry.depth(entry) >= depth))
+          || (Entry.depth(entry) > depth && Entry.generation(entry) == generation)) {
         return false;
       }
+    } else {
+      int minWorth = Integer.MAX_VALUE;
+      for (int i = bucket; i < bucket + 2 * (BUCKET_SIZE - 1); i += 2) {
+        int worth = worth(entries[i + 1]);
+        if (worth < minWorth) {
+          index = i;
+          minWorth = worth;
+        }
+      }
+      // Entries not worth more than any kept one go in the always-replace slot
+      if (minWorth > depth) {
+        index = bucket + 2 * (BUCKET_SIZE - 1);
+      }
+    }
+
+    if (Entry.type(entries[index + 1]) != Entry.Type.EMPTY) {
       stats.replaces++;
     } else {
       stats.creates++;
     }
 
-    entry.key = key;
-    entry.type = type;
-    entry.depth = (byte) depth;
-    entry.move = (byte) move;
-    entry.score = score;
-    entry.moveNum = (byte) moveNum;
-    entry.proof = proof;
+    long newEntry = Entry.pack(type, depth, move, score, proof, moveNum, generation);
+    entries[index] = key ^ newEntry;
+    entries[index + 1] = newEntry;
 
     return true;
   }
 
-  public Entry get(long key) {
+  /**
+   * Returns the packed data stored for the given key, or {@link #MISSING}.
+   */
+  public long get(long key) {
     stats.gets++;
 
-    Entry entry = table[keyToIndex(key)];
-    if (entry.key != key) {
-      return null;
+    int bucket = keyToIndex(key);
+    for (int i = bucket; i < bucket + 2 * BUCKET_SIZE; i += 2) {
+      long entry = entries[i + 1];
+      if ((entries[i] ^ entry) == key && entry != MISSING) {
+        stats.hits++;
+        return entry;
+      }
     }
+    return MISSING;
+  }
 
-    stats.hits++;
-    return entry;
+  /**
+   * Returns the array index of the key's entry in the given bucket, or -1 if there is none.
+   */
+  private int find(int bucket, long key) {
+    for (int i = bucket; i < bucket + 2 * BUCKET_SIZE; i += 2) {
+      long entry = entries[i + 1];
+      if ((entries[i] ^ entry) == key && entry != MISSING) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isWinOrLoss(int score) {
+    return Math.abs(score) >= EvaluatedGame.MAX_SCORE - MAX_MOVES;
+  }
+
+  /**
+   * Returns how much an entry is worth keeping, as its depth less some for each generation of age.
+   * Empty and unreachable entries are worth the least.
+   */
+  private int worth(long entry) {
+    if (Entry.type(entry) == Entry.Type.EMPTY || Entry.moveNum(entry) < moveNum) {
+      return Integer.MIN_VALUE;
+    }
+    int age = (generation - Entry.generation(entry)) & Entry.GENERATION_MASK;
+    return Entry.depth(entry) - AGE_DEPTH * age;
   }
 
+  /**
+   * Returns the array index of the key's bucket.
+   */
   private int keyToIndex(long key) {
-    return (int)(key & (table.length - 1));
+    return ((int) key & bucketMask) << (LOG_BUCKET_SIZE + 1);
   }
 
 }
@@ -15,11 +15,15 @@ public class Util {
   public static final int SUB_BOARD_SIZE = 9, MACROBOARD_SIZE = 9, MICROBOARD_SIZE = 9;
   public static final int BOARD_SIZE = 81;
   public static final int MAX_MOVES = 81;
+  // Null moves a game's history can hold on top of real moves; searchers never nest them
+  public static final int MAX_NULL_MOVES = 1;
 
   public static final String P1_NAME = "player1", P2_NAME = "player2";
 
   public static final int ANY_MACRO_INDEX = -1;
 
+  public static final int EMPTY_MASK = 0, FULL_MASK = 0b111111111;
+
   public static final int PLAYER_NONE = 0, PLAYER_1 = 1, PLAYER_2 = 2;
   public static final int NUM_PLAYERS = 2;
 
@@ -147,6 +151,42 @@ public class Util {
       {0, 4, 8}, // diagonal
       {2, 4, 6}}; // anti-diagonal
 
+  // Same lines as the win vectors, as 9-bit masks over micro/macro indexes
+  private static final int[] WIN_MASKS = {
+      0b000000111, 0b000111000, 0b111000000, // rows
+      0b001001001, 0b010010010, 0b100100100, // columns
+      0b100010001, // diagonal
+      0b001010100}; // anti-diagonal
+
+  // Whether a 9-bit mask contains any win mask, indexed by mask
+  private static final boolean[] WIN_TABLE = new boolean[FULL_MASK + 1];
+  // Bits that would each complete a win mask if added, indexed by mask
+  private static final int[] LINE_COMPLETING_TABLE = new int[FULL_MASK + 1];
+  static {
+    for (int mask = 0; mask <= FULL_MASK; mask++) {
+      for (int winMask : WIN_MASKS) {
+        if ((mask & winMask) == winMask) {
+          WIN_TABLE[mask] = true;
+        } else if (Integer.bitCount(mask & winMask) == 2) {
+          LINE_COMPLETING_TABLE[mask] |= winMask & ~mask;
+        }
+      }
+    }
+  }
+
+  // Index of the n-th lowest set bit of a 9-bit mask, indexed by mask * 9 + n
+  private static final byte[] NTH_SET_BIT_TABLE = new byte[(FULL_MASK + 1) * MICROBOARD_SIZE];
+  static {
+    for (int mask = 0; mask <= FULL_MASK; mask++) {
+      int n = 0;
+      for (int bit = 0; bit < MICROBOARD_SIZE; bit++) {
+        if ((mask & (1 << bit)) != 0) {
+          NTH_SET_BIT_TABLE[mask * MICROBOARD_SIZE + n++] = (byte) bit;
+        }
+      }
+    }
+  }
+
   public static final int CENTRAL_VECTOR = 0, EDGE_VECTOR = 1, DIAGONAL_VECTOR = 2;
   public static final int NUM_VECTOR_TYPES = 3;
 
@@ -231,6 +271,26 @@ public class Util {
     return MACRO_WIN_VECTORS;
   }
 
+  public static int[] winMasks() {
+    return WIN_MASKS;
+  }
+
+  public static boolean isWin(int mask) {
+    return WIN_TABLE[mask];
+  }
+
+  public static int lineCompletingMask(int mask) {
+    return LINE_COMPLETING_TABLE[mask];
+  }
+
+  /**
+   * Returns the index of the n-th (from 0) lowest set bit of the given 9-bit mask, which must have
+   * more than n set bits.
+   */
+  public static int nthSetBit(int mask, int n) {
+    return NTH_SET_BIT_TABLE[mask * MICROBOARD_SIZE + n];
+  }
+
   public static int[] winVectorTypes() {
     return WIN_VECTOR_TYPES;
   }
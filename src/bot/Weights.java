@@ -26,6 +26,8 @@ public class Weights {
   public final int[][] microboardTwoInRow;
   public final int anyNextMacroInd;
 
+  private volatile Features.ScoreTables scoreTables;
+
   public Weights(
       int[] macroboardOneInRow,
       int[] macroboardTwoInRow,
@@ -48,6 +50,22 @@ public class Weights {
         ANY_NEXT_MACRO_IND);
   }
 
+  /**
+   * Returns the score tables for these weights, built on first use and shared afterwards.
+   */
+  public Features.ScoreTables getScoreTables() {
+    Features.ScoreTables tables = scoreTables;
+    if (tables == null) {
+      synchronized (this) {
+        tables = scoreTables;
+        if (tables == null) {
+          scoreTables = tables = new Features.ScoreTables(this);
+        }
+      }
+    }
+    return tables;
+  }
+
   public int hammingDistance(Weights other) {
     int distance = 0;
     distance += hammingDistance(macroboardOneInRow, other.macroboardOneInRow);
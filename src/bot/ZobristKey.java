@@ -1,6 +1,5 @@
 package bot;
 
-import java.security.SecureRandom;
 import java.util.Random;
 
 import static bot.Util.*;
@@ -9,10 +8,12 @@ import static bot.Util.*;
  * @author Vance Zuo
  */
 public class ZobristKey {
-  private static final Random RANDOM = new SecureRandom(); // new Random(1095064007);
+  // Seeded so that keys are the same in every process, as the proof store persists them
+  private static final Random RANDOM = new Random(1095064007);
 
   private static final long[][] INDEX_KEYS;
   private static final long[] NEXT_MACRO_INDEX_KEY;
+  private static final long NULL_MOVE_KEY; // side to move is only ambiguous after null moves
   static {
     INDEX_KEYS = new long[BOARD_SIZE][NUM_PLAYERS + 1]; // PLAYER_NONE, PLAYER_1, PLAYER_2
     for (int i = 0; i < INDEX_KEYS.length; i++) {
@@ -25,6 +26,8 @@ public class ZobristKey {
     for (int i = 0; i < NEXT_MACRO_INDEX_KEY.length; i++) {
       NEXT_MACRO_INDEX_KEY[i] = RANDOM.nextLong();
     }
+
+    NULL_MOVE_KEY = RANDOM.nextLong();
   }
 
   private long key;
@@ -39,7 +42,7 @@ public class ZobristKey {
     // Irrelevant: history
     key = 0;
     for (int i = 0; i < BOARD_SIZE; i++) {
-      key ^= getIndexKey(i, game.getBoard()[i]);
+      key ^= getIndexKey(i, game.getCell(i));
     }
     key ^= getMacroIndexKey(game.getNextMacroIndex());
   }
@@ -57,6 +60,11 @@ public class ZobristKey {
     key ^= getMacroIndexKey(currentNextMacroInd);
   }
 
+  public void updateForNullMove(int prevNextMacroInd, int currentNextMacroInd) {
+    key ^= NULL_MOVE_KEY;
+    updateForNextMacroInd(prevNextMacroInd, currentNextMacroInd);
+  }
+
   private long getIndexKey(int index, int player) {
     return INDEX_KEYS[index][player];
   }
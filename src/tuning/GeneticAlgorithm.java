@@ -2,6 +2,8 @@ package tuning;
 
 import bot.Game;
 import bot.Match;
+import bot.ProofStore;
+import bot.SplitMixRandom;
 import bot.Weights;
 
 import java.time.LocalDateTime;
@@ -41,6 +43,7 @@ public class GeneticAlgorithm {
     final int kFactor;
     final double selectionProp;
     final double replacementRate;
+    final long seed; // of the random starts only, not of mutation and selection
 
     public RunParameters(
         int generations,
@@ -52,7 +55,8 @@ public class GeneticAlgorithm {
         int numRandomStartsAll, int botSearchDepth,
         int kFactor,
         double selectionProp,
-        double replacementRate) {
+        double replacementRate,
+        long seed) {
       this.generations = generations;
       this.mutationRate = mutationRate;
       this.mutationWeight = mutationWeight;
@@ -64,14 +68,37 @@ public class GeneticAlgorithm {
       this.kFactor = kFactor;
       this.selectionProp = selectionProp;
       this.replacementRate = replacementRate;
+      this.seed = seed;
+    }
+
+    /**
+     * Like the full constructor, with a new random seed (which the run logs).
+     */
+    public RunParameters(
+        int generations,
+        double mutationRate,
+        double mutationWeight,
+        int cpus,
+        int randomStartLength,
+        int numRandomStartsElite,
+        int numRandomStartsAll,
+        int botSearchDepth,
+        int kFactor,
+        double selectionProp,
+        double replacementRate) {
+      this(generations, mutationRate, mutationWeight, cpus, randomStartLength,
+          numRandomStartsElite, numRandomStartsAll, botSearchDepth, kFactor, selectionProp,
+          replacementRate, new SplitMixRandom().nextLong());
     }
   }
 
   Storage storage;
+  ProofStore proofStore; // shared by all matches, or null
 
   Map<Integer, BotEntry> bots;
   PopulationEntry currentPopulation;
   int totalGames;
+  SplitMixRandom random; // of each generation's random starts, seeded by the run
 
   public GeneticAlgorithm(Storage storage) {
     this.storage = storage;
@@ -83,6 +110,13 @@ public class GeneticAlgorithm {
     this(new Storage());
   }
 
+  /**
+   * Sets a proof store for the searchers of all matches to share, or null for none.
+   */
+  public void setProofStore(ProofStore proofStore) {
+    this.proofStore = proofStore;
+  }
+
   public void prepareNew(PrepareParameters params) {
     System.out.println(String.format("Preparing new run (%s)", LocalDateTime.now()));
 
@@ -121,7 +155,14 @@ public class GeneticAlgorithm {
     }
   }
 
+  /**
+   * Runs the given number of generations, or forever for -1. The seed repeats the start suites,
+   * but not the run: mutation and selection aren't seeded, and concurrent matches update Elo in
+   * any order.
+   */
   public void run(RunParameters params) {
+    System.out.println(String.format("Random start seed: %s", params.seed));
+    random = new SplitMixRandom(params.seed);
     for (int i = 0, l = params.generations; l == -1 || i < l; i++) {
       ExecutorService executor = new ThreadPoolExecutor(
           params.cpus,
@@ -307,6 +348,7 @@ public class GeneticAlgorithm {
       BotEntry bot1 = bots.get(botId);
       BotEntry bot2 = bots.get(otherBotId);
       Match match = new Match(bot1.weights, bot2.weights);
+      match.setProofStore(proofStore);
       for (int move : startingMoves) {
         match.manualMove(move);
       }
@@ -323,16 +365,16 @@ public class GeneticAlgorithm {
   private List<List<Integer>> getRandomStarts(int numRandomStart, int randomStartLength) {
     List<List<Integer>> randomStarts = new ArrayList<>();
     for (int i = 0; i < numRandomStart; i++) {
-      randomStarts.add(getRandomStartMoves(randomStartLength));
+      randomStarts.add(getRandomStartMoves(randomStartLength, random));
     }
     return randomStarts;
   }
 
-  private List<Integer> getRandomStartMoves(int randomStartLength) {
+  private List<Integer> getRandomStartMoves(int randomStartLength, SplitMixRandom random) {
     Game game = new Game();
     List<Integer> randomStartMoves = new ArrayList<>();
     for (int i = 0; i < randomStartLength; i++) {
-      int move = game.generateRandomMove();
+      int move = game.generateRandomMove(random);
       randomStartMoves.add(move);
       game.doMove(move);
     }
@@ -2,6 +2,8 @@ package tuning;
 
 import bot.Game;
 import bot.Match;
+import bot.ProofStore;
+import bot.SplitMixRandom;
 
 import java.time.LocalDateTime;
 import java.util.*;
@@ -20,12 +22,23 @@ public class Tournament {
     final int randomStartLength;
     final int numRandomStarts;
     final int botSearchDepth;
+    final long seed; // of the random starts
 
-    public RunParameters(int cpus, int randomStartLength, int numRandomStarts, int botSearchDepth) {
+    public RunParameters(
+        int cpus, int randomStartLength, int numRandomStarts, int botSearchDepth, long seed) {
       this.cpus = cpus;
       this.randomStartLength = randomStartLength;
       this.numRandomStarts = numRandomStarts;
       this.botSearchDepth = botSearchDepth;
+      this.seed = seed;
+    }
+
+    /**
+     * Like the full constructor, with a new random seed (which the run logs).
+     */
+    public RunParameters(int cpus, int randomStartLength, int numRandomStarts, int botSearchDepth) {
+      this(cpus, randomStartLength, numRandomStarts, botSearchDepth,
+          new SplitMixRandom().nextLong());
     }
   }
 
@@ -35,6 +48,7 @@ public class Tournament {
 
   ExecutorService executor;
   int totalGames;
+  ProofStore proofStore; // shared by all matches, or null
 
   public Tournament(Storage storage, Set<Integer> botIds) {
     this.storage = storage;
@@ -73,10 +87,18 @@ public class Tournament {
     this(new Storage(), populationId, limit, ordering);
   }
 
+  /**
+   * Sets a proof store for the searchers of all matches to share, or null for none.
+   */
+  public void setProofStore(ProofStore proofStore) {
+    this.proofStore = proofStore;
+  }
+
   public void run(RunParameters params) {
     executor = Executors.newFixedThreadPool(params.cpus);
 
     System.out.println(String.format("Running new tournament (%s)", LocalDateTime.now()));
+    System.out.println(String.format("Random start seed: %s", params.seed));
     for (Integer botId : botIds) {
       BotEntry botEntry = storage.getBotEntry(botId);
       System.out.println(String.format("Bot %s: %s", botId, botEntry.toRowString()));
@@ -104,7 +126,7 @@ public class Tournament {
 
   private void matchAll(RunParameters params) {
     List<List<Integer>> randomStarts =
-        getRandomStarts(params.numRandomStarts, params.randomStartLength);
+        getRandomStarts(params.numRandomStarts, params.randomStartLength, params.seed);
 
     for (int botId1 : botIds) {
       for (int botId2 : botIds) {
@@ -126,6 +148,7 @@ public class Tournament {
       BotEntry bot1 = storage.getBotEntry(botId1);
       BotEntry bot2 = storage.getBotEntry(botId2);
       Match match = new Match(bot1.weights, bot2.weights);
+      match.setProofStore(proofStore);
       for (int move : startingMoves) {
         match.manualMove(move);
       }
@@ -140,19 +163,21 @@ public class Tournament {
     });
   }
 
-  private List<List<Integer>> getRandomStarts(int numRandomStart, int randomStartLength) {
+  private List<List<Integer>> getRandomStarts(
+      int numRandomStart, int randomStartLength, long seed) {
     List<List<Integer>> randomStarts = new ArrayList<>();
+    SplitMixRandom random = new SplitMixRandom(seed);
     for (int i = 0; i < numRandomStart; i++) {
-      randomStarts.add(getRandomStartMoves(randomStartLength));
+      randomStarts.add(getRandomStartMoves(randomStartLength, random));
     }
     return randomStarts;
   }
 
-  private List<Integer> getRandomStartMoves(int randomStartLength) {
+  private List<Integer> getRandomStartMoves(int randomStartLength, SplitMixRandom random) {
     Game game = new Game();
     List<Integer> randomStartMoves = new ArrayList<>();
     for (int i = 0; i < randomStartLength; i++) {
-      int move = game.generateRandomMove();
+      int move = game.generateRandomMove(random);
       randomStartMoves.add(move);
       game.doMove(move);
     }